@@ -54,5 +54,8 @@ public final class R {
         public static final int status_reg=0x7f040016;
         public static final int status_unreg=0x7f040017;
         public static final int unregister=0x7f040018;
+        public static final int status_alert_cleared=0x7f040019;
+        public static final int status_alert_raised=0x7f04001a;
+        public static final int status_reading=0x7f04001b;
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streaming analytics stage: keeps {@link SlidingWindowStats} per device and
+ * metric and evaluates the registered {@link AlertRule}s as each reading
+ * arrives, so an alert is reported while the triggering reading is still being
+ * handled.
+ *
+ * Readers resolve a {@link Monitor} once per channel and feed it directly; the
+ * per-reading path does no lookups and no allocation. Monitors live as long as
+ * the engine, so windows and raised alerts carry over from one channel of a
+ * device to the next.
+ */
+public class AlertEngine {
+
+    // Receives raised and cleared alerts, on the thread that fed the triggering reading.
+    public interface Listener {
+        void onAlert(String address, AlertRule rule, boolean raised, long timestampMillis,
+                float value);
+    }
+
+    private final int mCapacity;
+    private final long mWindowMillis;
+    private final float mEwmaAlpha;
+    private final Listener mListener;
+    private final CopyOnWriteArrayList<AlertRule> mRules = new CopyOnWriteArrayList<AlertRule>();
+    private final ConcurrentHashMap<String, Monitor> mMonitors =
+            new ConcurrentHashMap<String, Monitor>();
+
+    public AlertEngine(int capacity, long windowMillis, float ewmaAlpha, Listener listener) {
+        mCapacity = capacity;
+        mWindowMillis = windowMillis;
+        mEwmaAlpha = ewmaAlpha;
+        mListener = listener;
+    }
+
+    // Adds a rule.  It applies to monitors created afterwards, so add rules before any reading.
+    public void addRule(AlertRule rule) {
+        mRules.add(rule);
+    }
+
+    // Returns the monitor for one metric of one device, creating it if needed.
+    public Monitor monitor(String address, int metric) {
+        String key = address + "/" + metric;
+        Monitor monitor = mMonitors.get(key);
+        if (monitor == null) {
+            ArrayList<AlertRule> rules = new ArrayList<AlertRule>();
+            for (AlertRule rule : mRules) {
+                if (rule.metric == metric) {
+                    rules.add(rule);
+                }
+            }
+            Monitor created = new Monitor(address, rules.toArray(new AlertRule[rules.size()]));
+            monitor = mMonitors.putIfAbsent(key, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        return monitor;
+    }
+
+    /**
+     * Window statistics and rule states of one metric of one device.
+     */
+    public class Monitor {
+        private final String mAddress;
+        private final AlertRule[] mRules;
+        private final boolean[] mActive;
+        private final SlidingWindowStats mStats;
+
+        Monitor(String address, AlertRule[] rules) {
+            mAddress = address;
+            mRules = rules;
+            mActive = new boolean[rules.length];
+            mStats = new SlidingWindowStats(mCapacity, mWindowMillis, mEwmaAlpha);
+        }
+
+        // Synchronized because a reconnecting device can briefly have two channels feeding it.
+        public synchronized void add(long timestampMillis, float value) {
+            mStats.add(timestampMillis, value);
+            for (int i = 0; i < mRules.length; i++) {
+                boolean holds = mRules[i].holds(mStats, mActive[i]);
+                if (holds != mActive[i]) {
+                    mActive[i] = holds;
+                    mListener.onAlert(mAddress, mRules[i], holds, timestampMillis, value);
+                }
+            }
+        }
+
+        public SlidingWindowStats stats() {
+            return mStats;
+        }
+    }
+}
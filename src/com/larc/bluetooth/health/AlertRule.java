@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * A condition on one metric that {@link AlertEngine} evaluates after every
+ * reading. A rule is only told whether it currently holds; the engine turns
+ * changes of that answer into raised and cleared alerts.
+ */
+public abstract class AlertRule {
+    public final int id;
+    public final int metric;
+
+    protected AlertRule(int id, int metric) {
+        this.id = id;
+        this.metric = metric;
+    }
+
+    // Whether the alert condition holds given the window with the latest reading already added.
+    // {@code active} is the current state so rules can apply hysteresis.
+    abstract boolean holds(SlidingWindowStats stats, boolean active);
+
+    /**
+     * Holds while the latest reading is outside [low, high]. Once raised, the
+     * reading has to come back inside the range by {@code hysteresis} before the
+     * alert clears.
+     */
+    public static class Threshold extends AlertRule {
+        private final float mLow;
+        private final float mHigh;
+        private final float mHysteresis;
+
+        public Threshold(int id, int metric, float low, float high, float hysteresis) {
+            super(id, metric);
+            mLow = low;
+            mHigh = high;
+            mHysteresis = hysteresis;
+        }
+
+        @Override
+        boolean holds(SlidingWindowStats stats, boolean active) {
+            float value = stats.latestValue();
+            float margin = active ? mHysteresis : 0;
+            return value < mLow + margin || value > mHigh - margin;
+        }
+    }
+
+    /**
+     * Holds while the metric drifts by more than {@code maxChange} (either
+     * direction) across the window, comparing the smoothed level against the
+     * oldest reading still in the window. Needs at least {@code minReadings}
+     * readings so a single early outlier does not count as a trend.
+     */
+    public static class Trend extends AlertRule {
+        private final float mMaxChange;
+        private final int mMinReadings;
+
+        public Trend(int id, int metric, float maxChange, int minReadings) {
+            super(id, metric);
+            mMaxChange = maxChange;
+            mMinReadings = minReadings;
+        }
+
+        @Override
+        boolean holds(SlidingWindowStats stats, boolean active) {
+            if (stats.count() < mMinReadings) {
+                return false;
+            }
+            return Math.abs(stats.ewma() - stats.oldestValue()) > mMaxChange;
+        }
+    }
+}
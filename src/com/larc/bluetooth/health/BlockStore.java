@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Long-term store of readings as a file of {@link SeriesBlock}s. Readings
+ * move here from the {@link ObservationLog} once they have all been
+ * published; {@link #absorb} regroups them by device and metric so each block
+ * holds a single series and compresses well.
+ *
+ * Scans read the fixed-size block headers and only read and decode the
+ * payload of blocks that overlap the requested time and value range.
+ */
+public class BlockStore {
+    private final FileChannel mChannel;
+    private final SeriesBlock mBlock = new SeriesBlock();
+    private final byte[] mEncoded = new byte[SeriesBlock.maxEncodedSize(SeriesBlock.MAX_COUNT)];
+    private long mSize;
+
+    // Readings of one series gathered by absorb().
+    private static final class Series {
+        final long device;
+        final int metric;
+        final long[] timestamps = new long[SeriesBlock.MAX_COUNT];
+        final float[] values = new float[SeriesBlock.MAX_COUNT];
+        int count;
+
+        Series(long device, int metric) {
+            this.device = device;
+            this.metric = metric;
+        }
+    }
+
+    public BlockStore(File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        // Walk the headers and drop a block torn by a crash.
+        ByteBuffer header = ByteBuffer.allocate(SeriesBlock.HEADER_SIZE);
+        long end = mChannel.size();
+        while (mSize + SeriesBlock.HEADER_SIZE <= end) {
+            header.clear();
+            if (!read(header, mSize)) {
+                break;
+            }
+            header.flip();
+            mBlock.readHeader(header);
+            long next = mSize + SeriesBlock.HEADER_SIZE + mBlock.payloadLength;
+            if (!mBlock.isValid() || next > end) {
+                break;
+            }
+            mSize = next;
+        }
+        mChannel.truncate(mSize);
+    }
+
+    // Bytes in the store.
+    public synchronized long size() {
+        return mSize;
+    }
+
+    // Appends readings of one series, in time order, as one or more blocks.
+    public synchronized void append(long device, int metric, long[] timestamps, float[] values,
+                                    int count) throws IOException {
+        for (int offset = 0; offset < count; offset += SeriesBlock.MAX_COUNT) {
+            int n = Math.min(SeriesBlock.MAX_COUNT, count - offset);
+            int length = mBlock.encode(device, metric, timestamps, values, offset, n, mEncoded);
+            ByteBuffer buffer = ByteBuffer.wrap(mEncoded, 0, length);
+            long position = mSize;
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+            mSize = position;
+        }
+    }
+
+    // Moves every reading of the log into blocks, grouped by device and metric, and syncs the
+    // store.  The caller holds the log's lock and clears the log afterwards.  Returns the
+    // number of readings moved.
+    public synchronized long absorb(ObservationLog log) throws IOException {
+        // Keyed on the device, then the metric, so no two series can share an entry.
+        final Map<Long, Map<Integer, Series>> series = new HashMap<Long, Map<Integer, Series>>();
+        final IOException[] error = { null };
+        final long[] count = { 0 };
+        log.scan(0, new ObservationLog.Visitor() {
+            public boolean visit(long sequence, long timestampMillis, long device, int metric,
+                                 float value, int flags) {
+                Map<Integer, Series> metrics = series.get(device);
+                if (metrics == null) {
+                    metrics = new HashMap<Integer, Series>();
+                    series.put(device, metrics);
+                }
+                Series s = metrics.get(metric);
+                if (s == null) {
+                    s = new Series(device, metric);
+                    metrics.put(metric, s);
+                }
+                s.timestamps[s.count] = timestampMillis;
+                s.values[s.count] = value;
+                if (++s.count == SeriesBlock.MAX_COUNT) {
+                    try {
+                        append(s.device, s.metric, s.timestamps, s.values, s.count);
+                    } catch (IOException e) {
+                        error[0] = e;
+                        return false;
+                    }
+                    s.count = 0;
+                }
+                count[0]++;
+                return true;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        for (Map<Integer, Series> metrics : series.values()) {
+            for (Series s : metrics.values()) {
+                if (s.count > 0) {
+                    append(s.device, s.metric, s.timestamps, s.values, s.count);
+                }
+            }
+        }
+        mChannel.force(false);
+        return count[0];
+    }
+
+    // Visits the readings of {@code device}, or of ObservationLog.ALL_DEVICES, with
+    // fromMillis <= timestamp < toMillis, block by block.  The sequence passed to the visitor
+    // is -1; every reading here has been published.
+    public void scan(long fromMillis, long toMillis, long device, ObservationLog.Visitor visitor)
+            throws IOException {
+        scan(fromMillis, toMillis, device, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+                visitor);
+    }
+
+    // As above, also skipping blocks with no value in [minValue, maxValue].  Readings of the
+    // blocks that are read are all visited.
+    public void scan(long fromMillis, long toMillis, long device, float minValue,
+                     float maxValue, ObservationLog.Visitor visitor) throws IOException {
+        SeriesBlock block = new SeriesBlock();
+        ByteBuffer header = ByteBuffer.allocate(SeriesBlock.HEADER_SIZE);
+        byte[] payload = new byte[SeriesBlock.maxEncodedSize(SeriesBlock.MAX_COUNT)];
+        long[] timestamps = new long[SeriesBlock.MAX_COUNT];
+        float[] values = new float[SeriesBlock.MAX_COUNT];
+        long position = 0;
+        long end = size();
+        while (position < end) {
+            header.clear();
+            if (!read(header, position)) {
+                return;
+            }
+            header.flip();
+            block.readHeader(header);
+            position += SeriesBlock.HEADER_SIZE;
+            if (block.maxTime < fromMillis || block.minTime >= toMillis
+                    || (device != ObservationLog.ALL_DEVICES && block.device != device)
+                    || block.maxValue < minValue || block.minValue > maxValue) {
+                position += block.payloadLength;
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload, 0, block.payloadLength);
+            if (!read(buffer, position)) {
+                return;
+            }
+            position += block.payloadLength;
+            block.decode(payload, 0, timestamps, values);
+            for (int i = 0; i < block.count; i++) {
+                if (timestamps[i] >= fromMillis && timestamps[i] < toMillis
+                        && !visitor.visit(-1, timestamps[i], block.device, block.metric,
+                                values[i], ObservationLog.FLAG_PUBLISHED)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private boolean read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = mChannel.read(buffer, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+}
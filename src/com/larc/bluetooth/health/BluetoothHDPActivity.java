@@ -16,6 +16,9 @@
 
 package com.larc.bluetooth.health;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -58,9 +61,14 @@ public class BluetoothHDPActivity extends Activity {
 	// 0x1008 - body thermometer
 	// 0x100F - body weight scale
     // 0x1014 - Body Composition Analyzer
+	// The service registers sinks for the first three; it has no decoder for
+	// body composition yet (see Specialization.SUPPORTED). This one is used
+	// when the application initiates the channel connection.
 	private static final int HEALTH_PROFILE_SOURCE_DATA_TYPE = 0x100F;
 
 	private static final int REQUEST_ENABLE_BT = 1;
+	// Readings copied out of the shared ring at a time.
+	private static final int RING_BATCH = 64;
 
 	private TextView mConnectIndicator;
 	private ImageView mDataIndicator;
@@ -73,6 +81,15 @@ public class BluetoothHDPActivity extends Activity {
 	private Resources mRes;
 	private Messenger mHealthService;
 	private boolean mHealthServiceBound;
+	// Null if the service's measurement ring could not be mapped.
+	private SharedMeasurementRing.Reader mRing;
+	private final long[] mRingTimestamps = new long[RING_BATCH];
+	private final long[] mRingDevices = new long[RING_BATCH];
+	private final int[] mRingMetrics = new int[RING_BATCH];
+	private final float[] mRingValues = new float[RING_BATCH];
+	// Time from launch to the service connecting and the first sink being
+	// registered.
+	private final StartupTimer mStartup = new StartupTimer();
 
 	// Handles events sent by {@link HealthHDPService}.
 	private Handler mIncomingHandler = new Handler() {
@@ -83,6 +100,10 @@ public class BluetoothHDPActivity extends Activity {
 			case BluetoothHDPService.STATUS_HEALTH_APP_REG:
 				mStatusMessage.setText(String.format(
 						mRes.getString(R.string.status_reg), msg.arg1));
+				if (mStartup.elapsedMillis("sink registered") < 0) {
+					mStartup.mark("sink registered");
+					Log.i(TAG, "Started: " + mStartup.summary());
+				}
 				break;
 			// Application unregistration complete.
 			case BluetoothHDPService.STATUS_HEALTH_APP_UNREG:
@@ -117,6 +138,23 @@ public class BluetoothHDPActivity extends Activity {
 						msg.arg1));
 				mConnectIndicator.setText(R.string.disconnected);
 				break;
+			// An alert rule on the incoming readings was raised or cleared.
+			case BluetoothHDPService.STATUS_ALERT:
+				mStatusMessage.setText(String.format(
+						mRes.getString(msg.arg2 != 0 ? R.string.status_alert_raised
+								: R.string.status_alert_cleared), msg.arg1));
+				break;
+			// New readings in the shared measurement ring.
+			case BluetoothHDPService.STATUS_RING:
+				drainRing();
+				break;
+			// The ring was created after this client registered; switch to it.
+			case BluetoothHDPService.STATUS_RING_READY:
+				if (mRing == null && openRing()) {
+					registerClient();
+					drainRing();
+				}
+				break;
 			default:
 				super.handleMessage(msg);
 			}
@@ -143,14 +181,14 @@ public class BluetoothHDPActivity extends Activity {
 		mDataIndicator = (ImageView) findViewById(R.id.data_ind);
 		mRes = getResources();
 		mHealthServiceBound = false;
+		mStartup.mark("content view");
 
 		// Initiates application registration through {@link
 		// BluetoothHDPService}.
 		Button registerAppButton = (Button) findViewById(R.id.button_register_app);
 		registerAppButton.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
-				sendMessage(BluetoothHDPService.MSG_REG_HEALTH_APP,
-						HEALTH_PROFILE_SOURCE_DATA_TYPE);
+				sendMessage(BluetoothHDPService.MSG_REG_HEALTH_APPS, 0);
 			}
 		});
 
@@ -210,29 +248,87 @@ public class BluetoothHDPActivity extends Activity {
 	private ServiceConnection mConnection = new ServiceConnection() {
 		public void onServiceConnected(ComponentName name, IBinder service) {
 			mHealthServiceBound = true;
-			Message msg = Message.obtain(null,
-					BluetoothHDPService.MSG_REG_CLIENT);
-			msg.replyTo = mMessenger;
+			mStartup.mark("service connected");
 			mHealthService = new Messenger(service);
-			try {
-				mHealthService.send(msg);
-			} catch (RemoteException e) {
-				Log.w(TAG, "Unable to register client to service.");
-				e.printStackTrace();
+			closeRing();
+			openRing();
+			registerClient();
+			if (mRing != null) {
+				drainRing();
 			}
 		}
 
+		// The binding stays in place and connects again once the service
+		// is restarted, so it is still unbound in onDestroy().
 		public void onServiceDisconnected(ComponentName name) {
 			mHealthService = null;
-			mHealthServiceBound = false;
+			closeRing();
 		}
 	};
 
+	// Maps the shared measurement ring.  On a first start the service may not
+	// have created it yet; readings come as messages until STATUS_RING_READY.
+	private boolean openRing() {
+		try {
+			mRing = new SharedMeasurementRing.Reader(new File(
+					getFilesDir(), BluetoothHDPService.RING_FILE));
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Receiving readings as messages.", e);
+			mRing = null;
+			return false;
+		}
+	}
+
+	// Releases the ring, so a reconnect maps it afresh.
+	private void closeRing() {
+		if (mRing != null) {
+			mRing.close();
+			mRing = null;
+		}
+	}
+
+	// Registers with the service, reading the ring if it is mapped.
+	private void registerClient() {
+		if (mHealthService == null) {
+			Log.d(TAG, "Health Service not connected.");
+			return;
+		}
+		Message msg = Message.obtain(null,
+				BluetoothHDPService.MSG_REG_CLIENT);
+		msg.arg1 = mRing != null ? BluetoothHDPService.CLIENT_READS_RING : 0;
+		msg.replyTo = mMessenger;
+		try {
+			mHealthService.send(msg);
+		} catch (RemoteException e) {
+			Log.w(TAG, "Unable to register client to service.");
+			e.printStackTrace();
+		}
+	}
+
+	// Reads the ring up to its head and asks for a wake-up once there is
+	// nothing left, showing the latest reading.
+	private void drainRing() {
+		if (mRing == null) {
+			return;
+		}
+		do {
+			int n;
+			while ((n = mRing.read(mRingTimestamps, mRingDevices, mRingMetrics,
+					mRingValues, RING_BATCH)) > 0) {
+				mStatusMessage.setText(String.format(
+						mRes.getString(R.string.status_reading),
+						mRingMetrics[n - 1], mRingValues[n - 1]));
+			}
+		} while (mRing.requestWakeup());
+	}
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		if (mHealthServiceBound)
 			unbindService(mConnection);
+		closeRing();
 		unregisterReceiver(mReceiver);
 	}
 
@@ -285,11 +381,17 @@ public class BluetoothHDPActivity extends Activity {
 		sendMessageWithDevice(BluetoothHDPService.MSG_DISCONNECT_CHANNEL);
 	}
 
+	// Starts and binds the health service once; onStart() and the Bluetooth
+	// state receiver both call this. The service registers the configured
+	// sinks on its own as soon as it is up.
 	private void initialize() {
-		// Starts health service.
+		if (mHealthServiceBound) {
+			return;
+		}
 		Intent intent = new Intent(this, BluetoothHDPService.class);
 		startService(intent);
-		bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+		mHealthServiceBound = bindService(intent, mConnection,
+				Context.BIND_AUTO_CREATE);
 	}
 
 	// Intent filter and broadcast receive to handle Bluetooth on event.
@@ -338,7 +440,8 @@ public class BluetoothHDPActivity extends Activity {
 		}
 
 		try {
-			mHealthService.send(Message.obtain(null, what, mDevice));
+			mHealthService.send(Message.obtain(null, what,
+					HEALTH_PROFILE_SOURCE_DATA_TYPE, 0, mDevice));
 		} catch (RemoteException e) {
 			Log.w(TAG, "Unable to reach service.");
 			e.printStackTrace();
@@ -17,11 +17,20 @@
 
         package com.larc.bluetooth.health;
 
+        import java.io.File;
+        import java.io.FileDescriptor;
         import java.io.FileInputStream;
         import java.io.FileOutputStream;
         import java.io.IOException;
-        import java.nio.ByteBuffer;
-        import java.nio.ByteOrder;
+        import java.io.PrintWriter;
+        import java.net.URL;
+        import java.util.ArrayList;
+        import java.util.Arrays;
+        import java.util.HashMap;
+        import java.util.HashSet;
+        import java.util.IdentityHashMap;
+        import java.util.Map;
+        import java.util.UUID;
 
         import android.app.Service;
         import android.bluetooth.BluetoothAdapter;
@@ -31,12 +40,15 @@
         import android.bluetooth.BluetoothHealthCallback;
         import android.bluetooth.BluetoothProfile;
         import android.content.Intent;
+        import android.content.SharedPreferences;
+        import android.os.Bundle;
         import android.os.Handler;
         import android.os.IBinder;
         import android.os.Message;
         import android.os.Messenger;
         import android.os.ParcelFileDescriptor;
         import android.os.RemoteException;
+        import android.os.SystemClock;
         import android.util.Log;
         import android.widget.Toast;
 
@@ -78,20 +90,70 @@ public class BluetoothHDPService extends Service {
     public static final int STATUS_READ_DATA = 104;
     // Done with reading data.
     public static final int STATUS_READ_DATA_DONE = 105;
+    // An alert rule was raised (arg2 = 1) or cleared (arg2 = 0); arg1 holds the rule id.
+    public static final int STATUS_ALERT = 106;
+    // Reply to MSG_GET_LATENCY.  The data bundle holds the traced data types under
+    // KEY_DATA_TYPES and, under latencyKey(dataType), the LatencyTracer.PERCENTILES of every
+    // stage in microseconds.
+    public static final int STATUS_LATENCY = 107;
+    // Reply to MSG_GET_COUNTERS.  The data bundle holds the ChannelCounters totals under
+    // KEY_COUNTERS, the live session labels under KEY_SESSIONS, and each session's counters
+    // under countersKey(label).
+    public static final int STATUS_COUNTERS = 108;
+    // Reply to MSG_EXPORT.  arg1 is RESULT_OK or RESULT_FAIL; the data bundle holds the number
+    // of readings written under KEY_EXPORT_COUNT.
+    public static final int STATUS_EXPORT = 109;
+    // New readings are in the shared measurement ring.  Sent once for each wake-up a ring
+    // client asked for with SharedMeasurementRing.Reader.requestWakeup().
+    public static final int STATUS_RING = 110;
+    // The shared measurement ring is open.  Sent in reply to MSG_REG_CLIENT without
+    // CLIENT_READS_RING, so a client that bound before the ring was created can map it now and
+    // register again.
+    public static final int STATUS_RING_READY = 111;
+
+    // Alert rule ids reported with STATUS_ALERT.
+    public static final int ALERT_SYS_RANGE = 1;
+    public static final int ALERT_DIA_RANGE = 2;
+    public static final int ALERT_SYS_TREND = 3;
 
     // Message codes received from the UI client.
-    // Register client with this service.
+    // Register client with this service.  With arg1 = CLIENT_READS_RING the client maps
+    // RING_FILE and gets readings through it instead of one message per reading.
     public static final int MSG_REG_CLIENT = 200;
     // Unregister client from this service.
     public static final int MSG_UNREG_CLIENT = 201;
-    // Register health application.
+    // Register health application for the data type in arg1, next to those already registered.
     public static final int MSG_REG_HEALTH_APP = 300;
-    // Unregister health application.
+    // Unregister the health application for the data type in arg1, or all of them if arg1 is 0.
     public static final int MSG_UNREG_HEALTH_APP = 301;
-    // Connect channel.
+    // Register health applications for every Specialization.SUPPORTED data type.
+    public static final int MSG_REG_HEALTH_APPS = 302;
+    // Connect channel to the device in obj, using the sink for the data type in arg1 (any if 0).
     public static final int MSG_CONNECT_CHANNEL = 400;
     // Disconnect channel.
     public static final int MSG_DISCONNECT_CHANNEL = 401;
+    // Request per-stage latency percentiles; answered with STATUS_LATENCY.
+    public static final int MSG_GET_LATENCY = 500;
+    // Request a snapshot of the throughput and health counters; answered with STATUS_COUNTERS.
+    public static final int MSG_GET_COUNTERS = 501;
+    // Export logged readings in the ObservationExporter format in arg1 to the
+    // ParcelFileDescriptor under KEY_EXPORT_FD.  KEY_EXPORT_FROM and KEY_EXPORT_TO limit the
+    // time range and KEY_EXPORT_DEVICE the device, when present.  Answered with STATUS_EXPORT.
+    public static final int MSG_EXPORT = 502;
+
+    public static final int CLIENT_READS_RING = 1;
+    // Shared measurement ring, in the files directory.
+    public static final String RING_FILE = "measurements.ring";
+
+    // Bundle keys.
+    public static final String KEY_DATA_TYPES = "dataTypes";
+    public static final String KEY_COUNTERS = "counters";
+    public static final String KEY_SESSIONS = "sessions";
+    public static final String KEY_EXPORT_FD = "exportFd";
+    public static final String KEY_EXPORT_FROM = "exportFrom";
+    public static final String KEY_EXPORT_TO = "exportTo";
+    public static final String KEY_EXPORT_DEVICE = "exportDevice";
+    public static final String KEY_EXPORT_COUNT = "exportCount";
 
     public static final int RECEIVED_SYS = 901;
 
@@ -99,61 +161,255 @@ public class BluetoothHDPService extends Service {
 
     public static final int RECEIVED_PUL = 903;
 
-    private int count;
-    private byte[] invoke = {0x00, 0x00};
+    // Readings kept in memory per device and metric.
+    private static final int VITALS_WINDOW_CAPACITY = 1024;
+    // Window of recent readings summarized in dumpsys.
+    private static final long VITALS_DUMP_WINDOW_MILLIS = 10 * 60 * 1000;
+    // Window the alert rules look at.
+    private static final int ALERT_WINDOW_CAPACITY = 256;
+    private static final long ALERT_WINDOW_MILLIS = 30 * 60 * 1000;
+    private static final float ALERT_EWMA_ALPHA = 0.2f;
+    // Binary capture of all channel traffic, kept in rotating files under the files directory.
+    private static final String CAPTURE_DIR = "capture";
+    private static final int CAPTURE_BUFFER_BYTES = 64 * 1024;
+    private static final long CAPTURE_FILE_BYTES = 4 * 1024 * 1024;
+    private static final int CAPTURE_FILES = 4;
+    // One read in this many is traced through the pipeline.
+    private static final int LATENCY_SAMPLE_EVERY = 4;
+    // Interval of the compact counter line in the log.
+    private static final long COUNTER_LOG_INTERVAL_MILLIS = 60 * 1000;
+    // Every decoded reading, and the state needed to resume after the process was killed.
+    private static final String OBSERVATION_LOG = "observations.log";
+    private static final String RECOVERY_JOURNAL = "recovery.journal";
+    // Published readings move from the log into compressed blocks once the log holds this many.
+    private static final String OBSERVATION_BLOCKS = "observations.blocks";
+    private static final long COMPACT_RECORDS = 16 * 1024;
+    private static final long COMPACT_CHECK_INTERVAL_MILLIS = 10 * 60 * 1000;
+    // Readings are uploaded when the upload preferences name a URL.
+    private static final String UPLOAD_PREFS = "upload";
+    private static final String PREF_UPLOAD_URL = "url";
+    private static final String PREF_UPLOAD_SOURCE = "source";
+    private static final String UPLOAD_CURSOR = "upload.cursor";
+    // Data types whose sinks are registered at startup, kept as the user registers and
+    // unregisters sinks.  Every supported data type until then.
+    private static final String STARTUP_PREFS = "startup";
+    private static final String PREF_DATA_TYPES = "dataTypes";
 
-    private BluetoothHealthAppConfiguration mHealthAppConfig;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothHealth mBluetoothHealth;
     private BluetoothDevice mDevice;
-    private int mChannelId;
+
+    // Registered sink configurations and the specialization each was registered for.  The stack
+    // hands the same configuration object back in every callback, so identity lookup is enough.
+    private final IdentityHashMap<BluetoothHealthAppConfiguration, Specialization> mSinks =
+            new IdentityHashMap<BluetoothHealthAppConfiguration, Specialization>();
+    // Open channels by device address.
+    private final HashMap<String, HealthChannel> mChannels = new HashMap<String, HealthChannel>();
+
+    // A connected channel and the sink it belongs to.
+    private static class HealthChannel {
+        final BluetoothHealthAppConfiguration config;
+        final int channelId;
+
+        HealthChannel(BluetoothHealthAppConfiguration config, int channelId) {
+            this.config = config;
+            this.channelId = channelId;
+        }
+    }
 
     private Messenger mClient;
 
+    // Recent readings of every connected device, for charts and threshold checks.
+    private final VitalsStore mVitals = new VitalsStore(VITALS_WINDOW_CAPACITY);
+    // Rolling statistics and threshold/trend rules over the same readings.
+    private final AlertEngine mAlerts = new AlertEngine(ALERT_WINDOW_CAPACITY,
+            ALERT_WINDOW_MILLIS, ALERT_EWMA_ALPHA, new AlertEngine.Listener() {
+                public void onAlert(String address, AlertRule rule, boolean raised,
+                                    long timestampMillis, float value) {
+                    Log.w(TAG, "Alert " + rule.id + (raised ? " raised" : " cleared")
+                            + " for " + address + ": " + value);
+                    sendMessage(STATUS_ALERT, rule.id, raised ? 1 : 0);
+                }
+            });
+
+    // Per-stage latency from a read returning to the client receiving its readings.
+    private final LatencyTracer mLatency = new LatencyTracer(LATENCY_SAMPLE_EVERY);
+
+    // Throughput and health counters of every session, and their totals.
+    private final CounterRegistry mCounters = new CounterRegistry();
+    // Devices that had a channel before, to count reconnects.
+    private final HashSet<String> mSeenDevices = new HashSet<String>();
+    private long[] mLastLoggedCounters = new long[ChannelCounters.COUNT];
+
+    // Null if the files could not be opened; the service then runs without persistence.
+    private ObservationLog mObservations;
+    private RecoveryJournal mJournal;
+    // Null if the block file could not be opened; readings then stay in the log.
+    private BlockStore mBlocks;
+    // Devices whose channels were open when the previous process died, by data type, to be
+    // connected again once the sink for that data type is registered.
+    private final HashMap<Integer, HashSet<String>> mPendingAdoptions =
+            new HashMap<Integer, HashSet<String>>();
+
+    // Null unless uploads are configured and the cursor could be read.
+    private Uploader mUploader;
+
+    // Null if the ring file could not be mapped; readings are then only sent as messages.
+    private SharedMeasurementRing mRing;
+    private boolean mClientReadsRing;
+
+    // Retries dropped channels with backoff; driven by mReconnectTick on the handler.
+    private final ReconnectScheduler mReconnects = new ReconnectScheduler(
+            new ReconnectScheduler.Connector() {
+                public boolean connect(String address, int dataType) {
+                    BluetoothHealth health = mBluetoothHealth;
+                    BluetoothHealthAppConfiguration config = sinkFor(dataType);
+                    if (health == null || config == null) {
+                        return false;
+                    }
+                    Log.i(TAG, "Reconnecting " + address);
+                    return health.connectChannelToSource(
+                            mBluetoothAdapter.getRemoteDevice(address), config);
+                }
+            });
+
+    // Null if the capture directory could not be opened.
+    private CaptureWriter mCapture;
+
+    // When each startup step finished; see onCreate().
+    private final StartupTimer mStartup = new StartupTimer();
+    private long mProxyRequested;
+    // Startup steps still running.  Requests wait in mDeferred until all of them are done.
+    private int mPendingSteps;
+    private boolean mStarted;
+    // Set first thing in onDestroy(), so steps finishing meanwhile do not start the service.
+    private boolean mDestroyed;
+    private final ArrayList<Message> mDeferred = new ArrayList<Message>();
+    private final ArrayList<Thread> mStartupThreads = new ArrayList<Thread>();
+    private SharedPreferences mStartupPrefs;
+    private final HashSet<Integer> mConfiguredTypes = new HashSet<Integer>();
+
     // Handles events sent by {@link HealthHDPActivity}.
     private class IncomingHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
+            if (!mStarted) {
+                // Storage or the health profile proxy is not there yet.
+                mDeferred.add(Message.obtain(msg));
+                return;
+            }
             switch (msg.what) {
                 // Register UI client to this service so the client can receive messages.
                 case MSG_REG_CLIENT:
                     Log.d(TAG, "Activity client registered");
                     mClient = msg.replyTo;
+                    mClientReadsRing = msg.arg1 == CLIENT_READS_RING && mRing != null;
+                    if (mRing != null && !mClientReadsRing) {
+                        BluetoothHDPService.this.sendMessage(STATUS_RING_READY, 0);
+                    }
+                    redeliverObservations();
                     break;
                 // Unregister UI client from this service.
                 case MSG_UNREG_CLIENT:
                     mClient = null;
+                    mClientReadsRing = false;
                     break;
                 // Register health application.
                 case MSG_REG_HEALTH_APP:
+                    configureDataType(msg.arg1, true);
                     registerApp(msg.arg1);
                     Log.e(TAG, String.valueOf(msg.arg1));
                     break;
+                // Register health applications for all supported device types.
+                case MSG_REG_HEALTH_APPS:
+                    for (Specialization specialization : Specialization.SUPPORTED) {
+                        configureDataType(specialization.dataType, true);
+                        registerApp(specialization.dataType);
+                    }
+                    break;
                 // Unregister health application.
                 case MSG_UNREG_HEALTH_APP:
-                    unregisterApp();
+                    configureDataType(msg.arg1, false);
+                    unregisterApp(msg.arg1);
                     break;
                 // Connect channel.
                 case MSG_CONNECT_CHANNEL:
                     mDevice = (BluetoothDevice) msg.obj;
-                    connectChannel();
+                    connectChannel(msg.arg1);
                     break;
                 // Disconnect channel.
                 case MSG_DISCONNECT_CHANNEL:
                     mDevice = (BluetoothDevice) msg.obj;
                     disconnectChannel();
                     break;
+                // Report latency percentiles.
+                case MSG_GET_LATENCY:
+                    replyLatency(msg.replyTo != null ? msg.replyTo : mClient);
+                    break;
+                // Report counters.
+                case MSG_GET_COUNTERS:
+                    replyCounters(msg.replyTo != null ? msg.replyTo : mClient);
+                    break;
+                // Export logged readings.
+                case MSG_EXPORT:
+                    export(msg);
+                    break;
                 default:
                     super.handleMessage(msg);
             }
         }
     }
 
-    final Messenger mMessenger = new Messenger(new IncomingHandler());
+    private final Handler mHandler = new IncomingHandler();
+    final Messenger mMessenger = new Messenger(mHandler);
+
+    // Logs the counter totals once a minute, when they changed.
+    private final Runnable mLogCounters = new Runnable() {
+        public void run() {
+            long[] totals = mCounters.totals();
+            if (!Arrays.equals(totals, mLastLoggedCounters)) {
+                Log.i(TAG, "counters " + ChannelCounters.format(totals));
+                mLastLoggedCounters = totals;
+            }
+            mHandler.postDelayed(this, COUNTER_LOG_INTERVAL_MILLIS);
+        }
+    };
+
+    // Starts the reconnect attempts that are due and waits for the next one.
+    private final Runnable mReconnectTick = new Runnable() {
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            long next = mReconnects.poll(now);
+            mHandler.removeCallbacks(this);
+            if (next >= 0) {
+                mHandler.postDelayed(this, next - now);
+            }
+        }
+    };
+
+    // Checks now and then whether the observation log is due for compaction.
+    private final Runnable mCompactObservations = new Runnable() {
+        public void run() {
+            ObservationLog log = mObservations;
+            if (log != null && mBlocks != null && log.size() >= COMPACT_RECORDS) {
+                new Thread("compact") {
+                    @Override
+                    public void run() {
+                        compactObservations();
+                    }
+                }.start();
+            }
+            mHandler.postDelayed(this, COMPACT_CHECK_INTERVAL_MILLIS);
+        }
+    };
 
     /**
      * Make sure Bluetooth and health profile are available on the Android device.  Stop service
      * if they are not available.
+     *
+     * The health profile proxy is requested first.  While it binds, storage and the startup
+     * configuration are opened on threads of their own; once all of them are done the configured
+     * sinks are registered and the requests that arrived meanwhile are handled.
      */
     @Override
     public void onCreate() {
@@ -168,6 +424,8 @@ public class BluetoothHDPService extends Service {
             stopSelf();
             return;
         }
+        mProxyRequested = mStartup.begin();
+        mPendingSteps++;
         if (!mBluetoothAdapter.getProfileProxy(this, mBluetoothServiceListener,
                 BluetoothProfile.HEALTH)) {
             Toast.makeText(this, "bluetooth_health_profile_not_available",
@@ -175,6 +433,443 @@ public class BluetoothHDPService extends Service {
             stopSelf();
             return;
         }
+
+        installAlertRules();
+        startStep("recovery", new Runnable() {
+            public void run() {
+                openRecoveryState();
+                startUploader();
+            }
+        });
+        startStep("ring", new Runnable() {
+            public void run() {
+                try {
+                    mRing = new SharedMeasurementRing(new File(getFilesDir(), RING_FILE),
+                            SharedMeasurementRing.DEFAULT_CAPACITY);
+                } catch (IOException e) {
+                    Log.w(TAG, "Shared measurement ring disabled", e);
+                }
+            }
+        });
+        startStep("capture", new Runnable() {
+            public void run() {
+                try {
+                    mCapture = new CaptureWriter(new File(getFilesDir(), CAPTURE_DIR),
+                            CAPTURE_BUFFER_BYTES, CAPTURE_FILE_BYTES, CAPTURE_FILES);
+                } catch (IOException e) {
+                    Log.w(TAG, "Channel capture disabled", e);
+                }
+            }
+        });
+        startStep("config", new Runnable() {
+            public void run() {
+                loadStartupConfig();
+            }
+        });
+        mHandler.postDelayed(mLogCounters, COUNTER_LOG_INTERVAL_MILLIS);
+        mHandler.postDelayed(mCompactObservations, COMPACT_CHECK_INTERVAL_MILLIS);
+    }
+
+    // Runs a startup step on a thread of its own and times it.
+    private void startStep(final String name, final Runnable step) {
+        mPendingSteps++;
+        Thread thread = new Thread("startup-" + name) {
+            @Override
+            public void run() {
+                long began = mStartup.begin();
+                step.run();
+                mStartup.end(name, began);
+                mHandler.post(mStepDone);
+            }
+        };
+        mStartupThreads.add(thread);
+        thread.start();
+    }
+
+    // Waits for a startup step to finish, if it was started.
+    private static void awaitStep(Thread step) {
+        if (step != null) {
+            try {
+                step.join();
+            } catch (InterruptedException e) { /* Do nothing. */ }
+        }
+    }
+
+    // Counts down the startup steps, on the main thread; the last one completes the startup.
+    private final Runnable mStepDone = new Runnable() {
+        public void run() {
+            if (--mPendingSteps == 0) {
+                completeStartup();
+            }
+        }
+    };
+
+    // Registers the sinks and handles the requests that waited for the startup steps.
+    private void completeStartup() {
+        if (mDestroyed) {
+            return;
+        }
+        mStarted = true;
+        restoreSinks();
+        mStartup.mark("sinks requested");
+        Log.i(TAG, "Started: " + mStartup.summary());
+        for (Message msg : mDeferred) {
+            mHandler.sendMessage(msg);
+        }
+        mDeferred.clear();
+    }
+
+    // Reads the data types to register at startup.  Runs on a startup thread, as the first read
+    // of a preferences file goes to disk.
+    private void loadStartupConfig() {
+        mStartupPrefs = getSharedPreferences(STARTUP_PREFS, MODE_PRIVATE);
+        String dataTypes = mStartupPrefs.getString(PREF_DATA_TYPES, null);
+        if (dataTypes == null) {
+            for (Specialization specialization : Specialization.SUPPORTED) {
+                mConfiguredTypes.add(specialization.dataType);
+            }
+            return;
+        }
+        for (String dataType : dataTypes.split(",")) {
+            try {
+                mConfiguredTypes.add(Integer.parseInt(dataType.trim()));
+            } catch (NumberFormatException e) {
+                // Empty list, or written by something else; skip it.
+            }
+        }
+    }
+
+    // Adds a data type to, or removes it from, those registered at startup.  Removing data type 0
+    // removes them all, like unregisterApp().
+    private void configureDataType(int dataType, boolean register) {
+        if (register) {
+            mConfiguredTypes.add(dataType);
+        } else if (dataType == 0) {
+            mConfiguredTypes.clear();
+        } else {
+            mConfiguredTypes.remove(dataType);
+        }
+        StringBuilder dataTypes = new StringBuilder();
+        for (int configured : mConfiguredTypes) {
+            if (dataTypes.length() > 0) {
+                dataTypes.append(',');
+            }
+            dataTypes.append(configured);
+        }
+        mStartupPrefs.edit().putString(PREF_DATA_TYPES, dataTypes.toString()).apply();
+    }
+
+    // Opens the observation log and the recovery journal, and remembers which channels to bring
+    // back.  Sinks are registered again once the health profile proxy is connected.
+    private void openRecoveryState() {
+        try {
+            mObservations = new ObservationLog(new File(getFilesDir(), OBSERVATION_LOG));
+            mJournal = new RecoveryJournal(new File(getFilesDir(), RECOVERY_JOURNAL));
+        } catch (IOException e) {
+            Log.w(TAG, "Running without recovery state", e);
+            mObservations = null;
+            mJournal = null;
+            return;
+        }
+        try {
+            // A crash between clearing the log and resetting the watermark leaves it too high.
+            if (mJournal.watermark() > mObservations.size()) {
+                mJournal.resetWatermark();
+            }
+            mBlocks = new BlockStore(new File(getFilesDir(), OBSERVATION_BLOCKS));
+        } catch (IOException e) {
+            Log.w(TAG, "Observation log will not be compacted", e);
+        }
+        for (Map.Entry<Long, int[]> channel : mJournal.channels().entrySet()) {
+            int dataType = channel.getValue()[0];
+            HashSet<String> addresses = mPendingAdoptions.get(dataType);
+            if (addresses == null) {
+                addresses = new HashSet<String>();
+                mPendingAdoptions.put(dataType, addresses);
+            }
+            addresses.add(ObservationLog.address(channel.getKey()));
+        }
+    }
+
+    // Starts uploading logged readings if a backend is configured.  Each installation names
+    // itself with a random id kept in the preferences, so the backend can tell sources apart.
+    private void startUploader() {
+        ObservationLog log = mObservations;
+        SharedPreferences prefs = getSharedPreferences(UPLOAD_PREFS, MODE_PRIVATE);
+        String url = prefs.getString(PREF_UPLOAD_URL, null);
+        if (log == null || url == null || url.length() == 0) {
+            return;
+        }
+        String source = prefs.getString(PREF_UPLOAD_SOURCE, null);
+        if (source == null) {
+            source = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_UPLOAD_SOURCE, source).commit();
+        }
+        try {
+            Uploader uploader = new Uploader(log, new File(getFilesDir(), UPLOAD_CURSOR),
+                    new Uploader.HttpTransport(new URL(url)), source,
+                    Uploader.DEFAULT_MAX_IN_FLIGHT);
+            // A crash between clearing the log and resetting the cursor leaves it too high.
+            if (uploader.getCursor() > log.size()) {
+                uploader.resetCursor();
+            }
+            uploader.setListener(new Uploader.Listener() {
+                public void onCursorError(IOException e, int failures, long retryMillis) {
+                    Log.w(TAG, "Upload cursor not saved (" + failures + " times), retrying in "
+                            + retryMillis + "ms", e);
+                }
+            });
+            uploader.start();
+            mUploader = uploader;
+        } catch (IOException e) {
+            Log.w(TAG, "Uploads disabled", e);
+        }
+    }
+
+    // Registers the sinks configured for startup and those that were registered before the
+    // service was restarted.
+    private void restoreSinks() {
+        HashSet<Integer> dataTypes = new HashSet<Integer>(mConfiguredTypes);
+        if (mJournal != null) {
+            for (int dataType : mJournal.dataTypes()) {
+                dataTypes.add(dataType);
+            }
+        }
+        for (int dataType : dataTypes) {
+            Log.i(TAG, String.format("Restoring sink for 0x%04X", dataType));
+            registerApp(dataType);
+        }
+    }
+
+    // Connects again to the devices that were on a channel of this sink before the restart.  The
+    // old channels died with the old registration, so they cannot be taken over as they are;
+    // the reconnect scheduler paces the attempts.
+    private void adoptChannels(BluetoothHealthAppConfiguration config) {
+        HashSet<String> addresses;
+        synchronized (mPendingAdoptions) {
+            addresses = mPendingAdoptions.remove(config.getDataType());
+        }
+        if (addresses == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (String address : addresses) {
+            Log.i(TAG, "Reconnecting " + address + " after restart");
+            mReconnects.reconnect(address, config.getDataType(), now);
+        }
+        mHandler.post(mReconnectTick);
+    }
+
+    // Sends the client every logged reading that never reached one, oldest first.
+    private void redeliverObservations() {
+        final ObservationLog log = mObservations;
+        final RecoveryJournal journal = mJournal;
+        if (log == null || mClient == null) {
+            return;
+        }
+        final long[] firstUndelivered = { -1 };
+        try {
+            log.scan(journal.watermark(), new ObservationLog.Visitor() {
+                public boolean visit(long sequence, long timestampMillis, long device,
+                                     int metric, float value, int flags) {
+                    if ((flags & ObservationLog.FLAG_PUBLISHED) != 0) {
+                        return true;
+                    }
+                    // Readings no client message carries go out only on the ring; without one
+                    // they wait here, as undelivered, for a client that reads it.
+                    if (publishReading(timestampMillis, device, metric, value)) {
+                        markPublished(sequence);
+                    } else if (firstUndelivered[0] < 0) {
+                        firstUndelivered[0] = sequence;
+                    }
+                    return true;
+                }
+            });
+            journal.advanceWatermark(firstUndelivered[0] >= 0 ? firstUndelivered[0] : log.size());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to redeliver readings", e);
+        }
+    }
+
+    // Moves the observation log into the block store once every reading in it was published
+    // and, if uploads are on, uploaded.  Appends wait on the log's lock meanwhile, so nothing
+    // arrives between the move and the clear.
+    private void compactObservations() {
+        ObservationLog log = mObservations;
+        BlockStore blocks = mBlocks;
+        RecoveryJournal journal = mJournal;
+        if (log == null || blocks == null || journal == null) {
+            return;
+        }
+        try {
+            synchronized (log) {
+                final boolean[] published = { true };
+                log.scan(journal.watermark(), new ObservationLog.Visitor() {
+                    public boolean visit(long sequence, long timestampMillis, long device,
+                                         int metric, float value, int flags) {
+                        published[0] = (flags & ObservationLog.FLAG_PUBLISHED) != 0;
+                        return published[0];
+                    }
+                });
+                Uploader uploader = mUploader;
+                if (!published[0] || (uploader != null && uploader.getCursor() < log.size())) {
+                    return;
+                }
+                long bytes = log.size() * ObservationLog.RECORD_SIZE;
+                long before = blocks.size();
+                long moved = blocks.absorb(log);
+                log.clear();
+                journal.resetWatermark();
+                if (uploader != null) {
+                    uploader.resetCursor();
+                }
+                Log.i(TAG, "Compacted " + moved + " readings from " + bytes + " to "
+                        + (blocks.size() - before) + " bytes");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact observation log", e);
+        }
+    }
+
+    // Hands a reading to the client: through the shared ring if the client reads it, with a
+    // wake-up only when the client asked for one, or else as a message of its own.
+    private boolean publishReading(long timestampMillis, long device, int metric, float value) {
+        SharedMeasurementRing ring = mRing;
+        if (ring != null && mClientReadsRing) {
+            ring.append(timestampMillis, device, metric, value);
+            if (ring.takeWakeupRequest()) {
+                sendMessage(STATUS_RING, 0);
+            }
+            return true;
+        }
+        int what = readingMessage(metric);
+        return what != 0 && sendMessage(what, (int) value);
+    }
+
+    // Message code a reading of the metric is sent to the client with, or 0 if it is not sent.
+    private static int readingMessage(int metric) {
+        if (metric == Nomenclature.MDC_PRESS_BLD_NONINV_SYS) {
+            return 9920;
+        } else if (metric == Nomenclature.MDC_PRESS_BLD_NONINV_DIA) {
+            return 9919;
+        }
+        return 0;
+    }
+
+    // Logs a reading; returns its sequence number, or -1 if it could not be logged.
+    private long logObservation(long timestampMillis, long device, int metric, float value) {
+        ObservationLog log = mObservations;
+        if (log == null) {
+            return -1;
+        }
+        try {
+            return log.append(timestampMillis, device, metric, value);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to log reading", e);
+            return -1;
+        }
+    }
+
+    private void markPublished(long sequence) {
+        ObservationLog log = mObservations;
+        if (log == null || sequence < 0) {
+            return;
+        }
+        try {
+            log.markPublished(sequence);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to mark reading published", e);
+        }
+    }
+
+    // Records sink and channel changes in the recovery journal.
+    private void journalSink(int dataType, boolean registered) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            if (registered) {
+                mJournal.registered(dataType);
+            } else {
+                mJournal.unregistered(dataType);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to journal sink", e);
+        }
+    }
+
+    private void journalChannel(BluetoothDevice device, int dataType, int channelId,
+                                boolean open) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            long key = ObservationLog.deviceKey(device.getAddress());
+            if (open) {
+                mJournal.channelOpened(key, dataType, channelId);
+            } else {
+                mJournal.channelClosed(key);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to journal channel", e);
+        }
+    }
+
+    // Default blood pressure limits.  The trend rule catches a sustained drift of the systolic
+    // pressure within the alert window even while it stays inside the limits.
+    private void installAlertRules() {
+        mAlerts.addRule(new AlertRule.Threshold(ALERT_SYS_RANGE,
+                Nomenclature.MDC_PRESS_BLD_NONINV_SYS, 90, 180, 5));
+        mAlerts.addRule(new AlertRule.Threshold(ALERT_DIA_RANGE,
+                Nomenclature.MDC_PRESS_BLD_NONINV_DIA, 50, 110, 5));
+        mAlerts.addRule(new AlertRule.Trend(ALERT_SYS_TREND,
+                Nomenclature.MDC_PRESS_BLD_NONINV_SYS, 25, 3));
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        // Storage may still be opening; wait for it, so it is closed below.  The steps post
+        // mStepDone as they finish, so it is removed only once all of them have.
+        for (Thread thread : mStartupThreads) {
+            awaitStep(thread);
+        }
+        mHandler.removeCallbacks(mStepDone);
+        mHandler.removeCallbacks(mLogCounters);
+        mHandler.removeCallbacks(mCompactObservations);
+        mHandler.removeCallbacks(mReconnectTick);
+        if (mUploader != null) {
+            mUploader.stop();
+        }
+        try {
+            if (mBlocks != null) {
+                mBlocks.close();
+            }
+            if (mObservations != null) {
+                mObservations.close();
+            }
+            if (mJournal != null) {
+                mJournal.close();
+            }
+        } catch (IOException e) { /* Do nothing. */ }
+        if (mCapture != null) {
+            try {
+                mCapture.close();
+            } catch (IOException e) { /* Do nothing. */ }
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mStartup.dump(pw);
+        mCounters.dump(pw);
+        mLatency.dump(pw);
+        mVitals.dump(pw, System.currentTimeMillis(), VITALS_DUMP_WINDOW_MILLIS);
+        mReconnects.dump(pw, SystemClock.elapsedRealtime());
+        if (mUploader != null) {
+            mUploader.dump(pw);
+        }
     }
 
     @Override
@@ -185,31 +880,119 @@ public class BluetoothHDPService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        // Not waiting for the ring here: a client that finds no ring file registers for
+        // messages and is sent STATUS_RING_READY once startup has opened it.
         return mMessenger.getBinder();
     };
 
-    // Register health application through the Bluetooth Health API.
+    // Register health application through the Bluetooth Health API.  Data types that already
+    // have a sink are left alone, so several device types can be served at once.
     private void registerApp(int dataType) {
         Log.e(TAG, "registerApp()");
+        if (sinkFor(dataType) != null) {
+            sendMessage(STATUS_HEALTH_APP_REG, RESULT_OK, dataType);
+            return;
+        }
         mBluetoothHealth.registerSinkAppConfiguration(TAG, dataType, mHealthCallback);
     }
 
-    // Unregister health application through the Bluetooth Health API.
-    private void unregisterApp() {
+    // Unregister health application through the Bluetooth Health API.  A data type of 0
+    // unregisters every sink.
+    private void unregisterApp(int dataType) {
         Log.e(TAG, "unregisterApp()");
-        mBluetoothHealth.unregisterAppConfiguration(mHealthAppConfig);
+        BluetoothHealthAppConfiguration[] configs;
+        synchronized (mSinks) {
+            configs = mSinks.keySet().toArray(new BluetoothHealthAppConfiguration[0]);
+        }
+        for (BluetoothHealthAppConfiguration config : configs) {
+            if (dataType == 0 || config.getDataType() == dataType) {
+                mBluetoothHealth.unregisterAppConfiguration(config);
+            }
+        }
     }
 
     // Connect channel through the Bluetooth Health API.
-    private void connectChannel() {
+    private void connectChannel(int dataType) {
         Log.i(TAG, "connectChannel()");
-        mBluetoothHealth.connectChannelToSource(mDevice, mHealthAppConfig);
+        BluetoothHealthAppConfiguration config = sinkFor(dataType);
+        if (config == null) {
+            Log.w(TAG, "No sink registered to connect with.");
+            sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
+            return;
+        }
+        if (mBluetoothHealth.connectChannelToSource(mDevice, config)) {
+            mReconnects.onAttemptStarted(mDevice.getAddress(), config.getDataType(),
+                    SystemClock.elapsedRealtime());
+        }
     }
 
     // Disconnect channel through the Bluetooth Health API.
     private void disconnectChannel() {
         Log.i(TAG, "disconnectChannel()");
-        mBluetoothHealth.disconnectChannel(mDevice, mHealthAppConfig, mChannelId);
+        HealthChannel channel;
+        synchronized (mChannels) {
+            channel = mChannels.get(mDevice.getAddress());
+        }
+        if (channel == null) {
+            sendMessage(STATUS_DESTROY_CHANNEL, RESULT_FAIL);
+            return;
+        }
+        mReconnects.release(mDevice.getAddress());
+        mBluetoothHealth.disconnectChannel(mDevice, channel.config, channel.channelId);
+    }
+
+    // The registered sink for the data type, or any registered sink if the data type is 0.
+    private BluetoothHealthAppConfiguration sinkFor(int dataType) {
+        synchronized (mSinks) {
+            for (BluetoothHealthAppConfiguration config : mSinks.keySet()) {
+                if (dataType == 0 || config.getDataType() == dataType) {
+                    return config;
+                }
+            }
+        }
+        return null;
+    }
+
+    // The specialization a configuration was registered for, or null if it is not ours.
+    private Specialization specializationOf(BluetoothHealthAppConfiguration config) {
+        synchronized (mSinks) {
+            return mSinks.get(config);
+        }
+    }
+
+    // Starts reading a newly connected channel.
+    private void openChannel(BluetoothHealthAppConfiguration config,
+                             Specialization specialization, BluetoothDevice device,
+                             ParcelFileDescriptor fd, int channelId) {
+        synchronized (mChannels) {
+            mChannels.put(device.getAddress(), new HealthChannel(config, channelId));
+        }
+        countConnect(device);
+        journalChannel(device, config.getDataType(), channelId, true);
+        sendMessage(STATUS_CREATE_CHANNEL, RESULT_OK);
+        (new ReadThread(fd, device, channelId, specialization)).start();
+    }
+
+    // Feeds a channel state change to the reconnect scheduler.  A connected channel that goes
+    // down is a dropout to recover from; a connecting one that does is a failed attempt.
+    private void trackReconnect(BluetoothHealthAppConfiguration config, BluetoothDevice device,
+                                int prevState, int newState) {
+        long now = SystemClock.elapsedRealtime();
+        String address = device.getAddress();
+        if (newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
+            mReconnects.onConnected(address, config.getDataType(), now);
+        } else if (newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
+            if (prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING) {
+                mReconnects.onConnectFailed(address, now);
+            } else if (prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
+                return;
+            } else {
+                mReconnects.onDisconnected(address, config.getDataType(), now);
+            }
+        } else {
+            return;
+        }
+        mHandler.post(mReconnectTick);
     }
 
     // Callbacks to handle connection set up and disconnection clean up.
@@ -220,6 +1003,13 @@ public class BluetoothHDPService extends Service {
                         mBluetoothHealth = (BluetoothHealth) proxy;
                         if (Log.isLoggable(TAG, Log.DEBUG))
                             Log.d(TAG, "onServiceConnected to profile: " + profile);
+                        boolean first = mStartup.elapsedMillis("proxy") < 0;
+                        mStartup.end("proxy", mProxyRequested);
+                        if (mStarted) {
+                            restoreSinks();
+                        } else if (first) {
+                            mStepDone.run();
+                        }
                     }
                 }
 
@@ -237,18 +1027,37 @@ public class BluetoothHDPService extends Service {
         public void onHealthAppConfigurationStatusChange(BluetoothHealthAppConfiguration config,
                                                          int status) {
             if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_FAILURE) {
-                mHealthAppConfig = null;
-                sendMessage(STATUS_HEALTH_APP_REG, RESULT_FAIL);
+                sendMessage(STATUS_HEALTH_APP_REG, RESULT_FAIL, config.getDataType());
                 Log.e("Register", "FAIL");
             } else if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_SUCCESS) {
-                mHealthAppConfig = config;
-                sendMessage(STATUS_HEALTH_APP_REG, RESULT_OK);
-                Log.e("Register", "OK");
+                Specialization specialization = Specialization.forDataType(config.getDataType());
+                if (specialization == null) {
+                    specialization = Specialization.custom(config.getDataType());
+                }
+                synchronized (mSinks) {
+                    mSinks.put(config, specialization);
+                }
+                journalSink(config.getDataType(), true);
+                String step = String.format("sink 0x%04X", config.getDataType());
+                if (mStartup.elapsedMillis(step) < 0) {
+                    mStartup.mark(step);
+                    Log.i(TAG, "Accepting agents on " + step + " "
+                            + mStartup.elapsedMillis(step) + "ms after start");
+                }
+                sendMessage(STATUS_HEALTH_APP_REG, RESULT_OK, config.getDataType());
+                Log.e("Register", "OK " + specialization);
+                adoptChannels(config);
             } else if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_FAILURE ||
                     status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
+                if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
+                    synchronized (mSinks) {
+                        mSinks.remove(config);
+                    }
+                    journalSink(config.getDataType(), false);
+                }
                 sendMessage(STATUS_HEALTH_APP_UNREG,
                         status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ?
-                                RESULT_OK : RESULT_FAIL);
+                                RESULT_OK : RESULT_FAIL, config.getDataType());
             }
         }
 
@@ -302,12 +1111,12 @@ public class BluetoothHDPService extends Service {
 //            if (prevState != BluetoothHealth.STATE_CHANNEL_CONNECTED &&
 //                    newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
 
+            Specialization specialization = specializationOf(config);
+            trackReconnect(config, device, prevState, newState);
             if (prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED && newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
-                if (config.equals(mHealthAppConfig)) {
-                    mChannelId = channelId;
-                    sendMessage(STATUS_CREATE_CHANNEL, RESULT_OK);
-                    Log.e("Read Thread", "Read  Start 1");
-                    (new ReadThread(fd)).start();
+                if (specialization != null) {
+                    Log.e("Read Thread", "Read  Start 1 " + specialization);
+                    openChannel(config, specialization, device, fd, channelId);
                 } else {
                     Log.e("Read Thread", "Status Create Channel Fail 1");
                     sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
@@ -316,7 +1125,11 @@ public class BluetoothHDPService extends Service {
         //        sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
                 Log.e("Read Thread", "Status Create Channel Fail 2");
             } else if (newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
-                if (config.equals(mHealthAppConfig)) {
+                synchronized (mChannels) {
+                    mChannels.remove(device.getAddress());
+                }
+                journalChannel(device, config.getDataType(), channelId, false);
+                if (specialization != null) {
                     sendMessage(STATUS_DESTROY_CHANNEL, RESULT_OK);
                     Log.e("Read Thread", "Status Disconnect OK");
                 } else {
@@ -324,11 +1137,9 @@ public class BluetoothHDPService extends Service {
                     Log.e("Read Thread", "Status Disconnect FAIL");
                 }
             }else if (prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING && newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
-                if (config.equals(mHealthAppConfig)) {
-                    mChannelId = channelId;
-                    sendMessage(STATUS_CREATE_CHANNEL, RESULT_OK);
-                    Log.e("Read Thread", "Read  Start 2");
-                    (new ReadThread(fd)).start();
+                if (specialization != null) {
+                    Log.e("Read Thread", "Read  Start 2 " + specialization);
+                    openChannel(config, specialization, device, fd, channelId);
                 } else {
                     sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
                     Log.e("Read Thread", "Status Create Channel Fail 3");
@@ -337,18 +1148,143 @@ public class BluetoothHDPService extends Service {
         }
     };
 
-    // Sends an update message to registered UI client.
-    private void sendMessage(int what, int value) {
+    // Sends an update message to registered UI client.  Returns whether it was delivered.
+    private boolean sendMessage(int what, int value) {
+        return sendMessage(what, value, 0);
+    }
+
+    private boolean sendMessage(int what, int arg1, int arg2) {
         if (mClient == null) {
             Log.d(TAG, "No clients registered.");
-            return;
+            return false;
         }
 
         try {
-            mClient.send(Message.obtain(null, what, value, 0));
+            mClient.send(Message.obtain(null, what, arg1, arg2));
+            return true;
         } catch (RemoteException e) {
             // Unable to reach client.
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static String latencyKey(int dataType) {
+        return "latency." + dataType;
+    }
+
+    public static String countersKey(String label) {
+        return "counters." + label;
+    }
+
+    private void replyCounters(Messenger to) {
+        if (to == null) {
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putLongArray(KEY_COUNTERS, mCounters.totals());
+        String[] labels = new String[mCounters.live().size()];
+        int i = 0;
+        for (ChannelCounters counters : mCounters.live()) {
+            if (i == labels.length) {
+                break;
+            }
+            labels[i++] = counters.getLabel();
+            data.putLongArray(countersKey(counters.getLabel()), counters.snapshot());
+        }
+        data.putStringArray(KEY_SESSIONS, Arrays.copyOf(labels, i));
+        Message msg = Message.obtain(null, STATUS_COUNTERS);
+        msg.setData(data);
+        try {
+            to.send(msg);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to send counters to client.");
+        }
+    }
+
+    // Starts an export on its own thread; the log is read in chunks while readings keep coming.
+    private void export(Message msg) {
+        Messenger to = msg.replyTo != null ? msg.replyTo : mClient;
+        Bundle data = msg.getData();
+        ParcelFileDescriptor fd = data.getParcelable(KEY_EXPORT_FD);
+        ObservationLog log = mObservations;
+        if (log == null || fd == null) {
+            replyExport(to, RESULT_FAIL, 0);
+            return;
+        }
+        String address = data.getString(KEY_EXPORT_DEVICE);
+        long device = address != null
+                ? ObservationLog.deviceKey(address) : ObservationLog.ALL_DEVICES;
+        new ExportThread(mBlocks, log, fd, msg.arg1, data.getLong(KEY_EXPORT_FROM, 0),
+                data.getLong(KEY_EXPORT_TO, Long.MAX_VALUE), device, to).start();
+    }
+
+    private void replyExport(Messenger to, int result, long count) {
+        if (to == null) {
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putLong(KEY_EXPORT_COUNT, count);
+        Message msg = Message.obtain(null, STATUS_EXPORT, result, 0);
+        msg.setData(data);
+        try {
+            to.send(msg);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to send export result to client.");
+        }
+    }
+
+    // Counts a reconnect when a device that had a channel before connects again.
+    private void countConnect(BluetoothDevice device) {
+        synchronized (mSeenDevices) {
+            if (!mSeenDevices.add(device.getAddress())) {
+                mCounters.count(ChannelCounters.RECONNECTS);
+            }
+        }
+    }
+
+    private void replyLatency(Messenger to) {
+        if (to == null) {
+            return;
+        }
+        int[] dataTypes = mLatency.dataTypes();
+        Bundle data = new Bundle();
+        data.putIntArray(KEY_DATA_TYPES, dataTypes);
+        for (int dataType : dataTypes) {
+            data.putLongArray(latencyKey(dataType), mLatency.percentiles(dataType));
+        }
+        Message msg = Message.obtain(null, STATUS_LATENCY);
+        msg.setData(data);
+        try {
+            to.send(msg);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to send latency to client.");
+        }
+    }
+
+    // Records a read or a sent APDU in the channel capture.  Capture is switched off on the first write error
+    // rather than fail the channel.
+    private void capture(byte direction, int channelId, byte[] data, int offset, int length) {
+        CaptureWriter capture = mCapture;
+        if (capture == null) {
+            return;
+        }
+        try {
+            capture.record(direction, channelId, data, offset, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Channel capture failed, disabling", e);
+            mCapture = null;
+        }
+    }
+
+    private void flushCapture() {
+        CaptureWriter capture = mCapture;
+        if (capture != null) {
+            try {
+                capture.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Channel capture flush failed", e);
+            }
         }
     }
 
@@ -387,104 +1323,114 @@ public class BluetoothHDPService extends Service {
         return ret;
     }
 
-    // Thread to read incoming data received from the HDP device.  This sample application merely
-    // reads the raw byte from the incoming file descriptor.  The data should be interpreted using
-    // a health manager which implements the IEEE 11073-xxxxx specifications.
-    private class ReadThread extends Thread {
-        private ParcelFileDescriptor mFd;
+    // Streams a filtered scan of the block store, then of the observation log, through an
+    // ObservationExporter.
+    private class ExportThread extends Thread {
+        private final BlockStore mBlockStore;
+        private final ObservationLog mLog;
+        private final ParcelFileDescriptor mFd;
+        private final int mFormat;
+        private final long mFromMillis;
+        private final long mToMillis;
+        private final long mDevice;
+        private final Messenger mReplyTo;
+
+        public ExportThread(BlockStore blocks, ObservationLog log, ParcelFileDescriptor fd,
+                            int format, long fromMillis, long toMillis, long device,
+                            Messenger replyTo) {
+            super("export");
+            mBlockStore = blocks;
+            mLog = log;
+            mFd = fd;
+            mFormat = format;
+            mFromMillis = fromMillis;
+            mToMillis = toMillis;
+            mDevice = device;
+            mReplyTo = replyTo;
+        }
 
-        public ReadThread(ParcelFileDescriptor fd) {
+        @Override
+        public void run() {
+            FileOutputStream out = new FileOutputStream(mFd.getFileDescriptor());
+            int result = RESULT_OK;
+            long count = 0;
+            try {
+                ObservationExporter exporter = new ObservationExporter(out.getChannel(), mFormat);
+                if (mBlockStore != null) {
+                    mBlockStore.scan(mFromMillis, mToMillis, mDevice, exporter);
+                }
+                mLog.scan(mFromMillis, mToMillis, mDevice, exporter);
+                count = exporter.finish();
+            } catch (IOException e) {
+                Log.w(TAG, "Export failed", e);
+                result = RESULT_FAIL;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Export failed", e);
+                result = RESULT_FAIL;
+            } finally {
+                try {
+                    out.close();
+                    mFd.close();
+                } catch (IOException e) {
+                    // Nothing more to do.
+                }
+            }
+            Log.i(TAG, "Exported " + count + " readings");
+            replyExport(mReplyTo, result, count);
+        }
+    }
+
+    // Thread to read incoming data received from the HDP device.  The raw bytes are handed to a
+    // {@link ManagerSession}, which implements the IEEE 11073-20601 manager side, answers the
+    // agent on this thread and reports the decoded readings back here.
+    private class ReadThread extends Thread
+            implements ManagerSession.Transport, ManagerSession.Listener {
+        private ParcelFileDescriptor mFd;
+        private final int mChannelId;
+        private final long mDeviceKey;
+        // Ring and monitor of each metric the decoder reports, in the decoder's order.
+        private final int[] mMetrics;
+        private final FloatSeriesRing[] mSeries;
+        private final AlertEngine.Monitor[] mMonitors;
+        private final ManagerSession mSession;
+        private final LatencyTracer.Trace mTrace;
+        private FileOutputStream mOut;
+
+        public ReadThread(ParcelFileDescriptor fd, BluetoothDevice device, int channelId,
+                          Specialization specialization) {
             super();
             mFd = fd;
+            mChannelId = channelId;
+            mDeviceKey = ObservationLog.deviceKey(device.getAddress());
+            ReportDecoder decoder = specialization.decoder;
+            mMetrics = decoder != null ? decoder.metrics : new int[0];
+            mSeries = new FloatSeriesRing[mMetrics.length];
+            mMonitors = new AlertEngine.Monitor[mMetrics.length];
+            for (int i = 0; i < mMetrics.length; i++) {
+                // Shared with any other channel of the device; appends are serialized.
+                mSeries[i] = mVitals.floatSeries(device.getAddress(), mMetrics[i]);
+                mMonitors[i] = mAlerts.monitor(device.getAddress(), mMetrics[i]);
+            }
+            mSession = new ManagerSession(device.getAddress(), channelId, decoder, this, this);
+            mTrace = mLatency.newTrace(specialization.dataType);
+            mSession.setTrace(mTrace);
         }
 
         @Override
         public void run() {
             Log.e("TEST", "Read Data 1");
             FileInputStream fis = new FileInputStream(mFd.getFileDescriptor());
+            mOut = new FileOutputStream(mFd.getFileDescriptor());
             final byte data[] = new byte[200];
             Log.i(TAG, "Read Data 2");
+            mCounters.register(mSession.getCounters());
             try {
-                while(fis.read(data) > -1) {
-                    // At this point, the application can pass the raw data to a parser that
-                    // has implemented the IEEE 11073-xxxxx specifications.  Instead, this sample
-                    // simply indicates that some data has been received.
-
-                    Log.i(TAG, "INBOUND");
-                    String test = byte2hex(data);
-                    Log.i(TAG, test);
-
-                    if (data[0] != (byte) 0x00)
-                    {
-
-                        if(data[0] == (byte) 0xE2){
-                            Log.i(TAG, "E2 - Association Request");
-                            count = 1;
-
-                            (new WriteThread(mFd)).start();
-                            try {
-                                sleep(100);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            count = 2;
-                            (new WriteThread(mFd)).start();
-                        }
-                        else if (data[0] == (byte)0xE7){
-                            Log.i(TAG, "E7 - Data Given");
-
-
-                            if(data[3] != (byte)0xda){
-
-                                invoke[0] = data[6];
-                                invoke[1] = data[7];
-
-                                Log.i(TAG, "E7 - Reading?");
-                                ByteBuffer sys = ByteBuffer.allocate(2);
-                                sys.order(ByteOrder.LITTLE_ENDIAN);
-                                sys.put(data[45]);
-                                sys.put(data[46]);
-                                short sysVal = sys.getShort(0);
-                                Log.i(TAG, " Sys - "+sysVal);
-
-                                ByteBuffer dia = ByteBuffer.allocate(2);
-                                dia.order(ByteOrder.LITTLE_ENDIAN);
-                                dia.put(data[47]);
-                                dia.put(data[48]);
-                                short diaVal = dia.getShort(0);
-                                Log.i(TAG, " Dia - "+diaVal);
-
-                                sendMessage(9919, diaVal);
-                                sendMessage(9920, sysVal);
-
-
-
-                                for(int i=0; i<(data.length-2); i++){
-                                    ByteBuffer bb = ByteBuffer.allocate(2);
-                                    bb.order(ByteOrder.LITTLE_ENDIAN);
-                                    bb.put(data[i]);
-                                    bb.put(data[i+1]);
-                                    short shortVal = bb.getShort(0);
-                                    Log.i(TAG, i+" Short Val - "+shortVal);
-
-                                }
-
-                                count = 3;
-                                //set invoke id so get correct response
-                                (new WriteThread(mFd)).start();
-                            }
-                            //parse data!!
-                        }
-                        else if (data[0] == (byte) 0xE4)
-                        {
-                            count = 4;
-                            (new WriteThread(mFd)).start();
-                        }
-                        //zero out the data
-                        for (int i = 0; i < data.length; i++){
-                            data[i] = (byte) 0x00;
-                        }
-                    }
+                int length;
+                while((length = fis.read(data)) > -1) {
+                    mTrace.begin(System.nanoTime());
+                    capture(CaptureWriter.INBOUND, mChannelId, data, 0, length);
+                    mSession.onData(data, 0, length);
+                    mTrace.end();
                     sendMessage(STATUS_READ_DATA, 0);
                 }
             } catch(IOException ioe) {}
@@ -493,94 +1439,58 @@ public class BluetoothHDPService extends Service {
                     mFd.close();
                 } catch (IOException e) { /* Do nothing. */ }
             }
+            mCounters.unregister(mSession.getCounters());
+            flushCapture();
             sendMessage(STATUS_READ_DATA_DONE, 0);
         }
-    }
 
-    private class WriteThread extends Thread {
-        private ParcelFileDescriptor mFd;
+        public void send(byte[] apdu, int offset, int length) throws IOException {
+            mOut.write(apdu, offset, length);
+            capture(CaptureWriter.OUTBOUND, mChannelId, apdu, offset, length);
+        }
 
-        public WriteThread(ParcelFileDescriptor fd) {
-            super();
-            mFd = fd;
+        public void onAssociated(ManagerSession session) {
+            Log.i(TAG, "E2 - Association Request");
+            mReconnects.onAssociated(session.getAddress());
         }
 
-        @Override
-        public void run() {
-            FileOutputStream fos = new FileOutputStream(mFd.getFileDescriptor());
-            final byte data_AR[] = new byte[] {         (byte) 0xE3, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x2C,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x50, (byte) 0x79,
-                    (byte) 0x00, (byte) 0x26,
-                    (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x80, (byte) 0x00,
-                    (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x08,  //bt add for phone, can be automate in the future
-                    (byte) 0x3C, (byte) 0x5A, (byte) 0x37, (byte) 0xFF,
-                    (byte) 0xFE, (byte) 0x95, (byte) 0xEE, (byte) 0xE3,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
-            final byte data_DR[] = new byte[] {         (byte) 0xE7, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x12,
-                    (byte) 0x00, (byte) 0x10,
-                    (byte) 0x00, (byte) 0x24,
-                    (byte) 0x02, (byte) 0x01,
-                    (byte) 0x00, (byte) 0x0A,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x0D, (byte) 0x1D,
-                    (byte) 0x00, (byte) 0x00 };
-
-            final byte get_MDS[] = new byte[] {         (byte) 0xE7, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x0E,
-                    (byte) 0x00, (byte) 0x0C,
-                    (byte) 0x00, (byte) 0x24,
-                    (byte) 0x01, (byte) 0x03,
-                    (byte) 0x00, (byte) 0x06,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00 };
-
-            final byte data_RR[] = new byte[] {         (byte) 0xE5, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x02,
-                    (byte) 0x00, (byte) 0x00 };
-
-            final byte data_RRQ[] = new byte[] {        (byte) 0xE4, (byte) 0x00,
-                                                        (byte) 0x00, (byte) 0x02,
-                                                        (byte) 0x00, (byte) 0x00 };
-
-            final byte data_ABORT[] = new byte[] {      (byte) 0xE6, (byte) 0x00,
-                                                        (byte) 0x00, (byte) 0x02,
-                                                        (byte) 0x00, (byte) 0x00 };
-            try {
-                Log.i(TAG, String.valueOf(count));
-                if (count == 1)
-                {
-                    fos.write(data_AR);
-                    Log.i(TAG, "Association Responded!");
-                }
-                else if (count == 2)
-                {
-                    fos.write(get_MDS);
-                    Log.i(TAG, "Get MDS object attributes!");
-                }
-                else if (count == 3)
-                {
-                    fos.write(data_DR);
-                    Log.i(TAG, "Data Responsed!");
-                }
-                else if (count == 4)
-                {
-                    fos.write(data_RR);
-                    Log.i(TAG, "Data Released!");
-                }
-            } catch(IOException ioe) {}
+        public void onObservation(ManagerSession session, int metric, long timestampMillis,
+                                  float value) {
+            int i = 0;
+            while (i < mMetrics.length && mMetrics[i] != metric) {
+                i++;
+            }
+            if (i == mMetrics.length) {
+                return;
+            }
+            FloatSeriesRing series = mSeries[i];
+            AlertEngine.Monitor monitor = mMonitors[i];
+            Log.i(TAG, String.format(" %04X - %s", metric, value));
+            // Logged before anything else, so a reading is never published without being kept.
+            long sequence = logObservation(timestampMillis, mDeviceKey, metric, value);
+            series.append(timestampMillis, value);
+            mTrace.mark(LatencyTracer.STAGE_STORED);
+            monitor.add(timestampMillis, value);
+            mTrace.mark(LatencyTracer.STAGE_PUBLISHED);
+            if (publishReading(timestampMillis, mDeviceKey, metric, value)) {
+                mTrace.mark(LatencyTracer.STAGE_DELIVERED);
+                markPublished(sequence);
+            }
         }
 
+        public void onDuplicate(ManagerSession session, int invokeId) {
+            Log.i(TAG, "E7 - Retransmitted report " + invokeId + " confirmed again");
+        }
+
+        // The agent released or aborted the association, so the channel closing next is not a
+        // dropout.
+        public void onReleased(ManagerSession session) {
+            Log.i(TAG, "Data Released!");
+            mReconnects.release(session.getAddress());
+        }
+
+        public void onProtocolError(ManagerSession session, int type, int length) {
+            Log.w(TAG, String.format("Aborted on malformed APDU %02x, size %d", type, length));
+        }
     }
 }
\ No newline at end of file
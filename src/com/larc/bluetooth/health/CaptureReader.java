@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the records of one file written by {@link CaptureWriter}. A single
+ * {@link Record} is reused for every call to {@link #next(Record)}; its payload
+ * array only grows when a larger APDU comes along.
+ */
+public class CaptureReader {
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final long mBaseWallMillis;
+    private final long mBaseNanos;
+
+    public CaptureReader(File file) throws IOException {
+        mChannel = new FileInputStream(file).getChannel();
+        mBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        mBuffer.flip();
+        if (!fill(CaptureWriter.HEADER_SIZE) || mBuffer.getInt() != CaptureWriter.MAGIC) {
+            close();
+            throw new IOException("Not a capture file: " + file);
+        }
+        short version = mBuffer.getShort();
+        if (version != CaptureWriter.VERSION) {
+            close();
+            throw new IOException("Unsupported capture version " + version + ": " + file);
+        }
+        mBaseWallMillis = mBuffer.getLong();
+        mBaseNanos = mBuffer.getLong();
+    }
+
+    /**
+     * One captured APDU.
+     */
+    public static final class Record {
+        public byte direction;
+        public int channelId;
+        public long nanoTime;
+        public byte[] data = new byte[256];
+        public int length;
+    }
+
+    // Reads the next record into {@code record}.  Returns false at the end of the file; a record
+    // cut short by a crash is treated as the end.
+    public boolean next(Record record) throws IOException {
+        if (!fill(CaptureWriter.RECORD_HEADER_SIZE)) {
+            return false;
+        }
+        int length = mBuffer.getInt();
+        if (length < 0) {
+            throw new IOException("Corrupt record length " + length);
+        }
+        record.channelId = mBuffer.getInt();
+        record.nanoTime = mBuffer.getLong();
+        record.direction = mBuffer.get();
+        if (record.data.length < length) {
+            record.data = new byte[Math.max(length, record.data.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            if (!mBuffer.hasRemaining() && !fill(1)) {
+                return false;
+            }
+            int n = Math.min(length - read, mBuffer.remaining());
+            mBuffer.get(record.data, read, n);
+            read += n;
+        }
+        record.length = length;
+        return true;
+    }
+
+    // Wall clock time of a record, in milliseconds.
+    public long wallMillis(Record record) {
+        return mBaseWallMillis + (record.nanoTime - mBaseNanos) / 1000000;
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    // Makes sure at least {@code count} bytes are buffered.  Returns false at the end of the file.
+    private boolean fill(int count) throws IOException {
+        if (mBuffer.remaining() >= count) {
+            return true;
+        }
+        mBuffer.compact();
+        while (mBuffer.position() < count) {
+            if (mChannel.read(mBuffer) < 0) {
+                mBuffer.flip();
+                return false;
+            }
+        }
+        mBuffer.flip();
+        return true;
+    }
+}
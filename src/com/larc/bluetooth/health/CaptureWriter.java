@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Records raw HDP channel traffic to compact binary files that
+ * {@link CaptureReader} can stream back. Inbound records are reads as they came
+ * off the channel, so one may hold part of an APDU or several of them; replaying
+ * them through {@link ManagerSession#onData} reframes them. Outbound records are
+ * whole APDUs.
+ *
+ * A capture file starts with a header of {@link #MAGIC}, {@link #VERSION}, and
+ * the wall clock and {@link System#nanoTime()} taken when the file was opened,
+ * so the monotonic record timestamps can be mapped back to wall time. It is
+ * followed by records of
+ *
+ *   int length, int channel id, long nanoTime, byte direction, length bytes
+ *
+ * all big endian. Records are gathered in a direct buffer and written to the
+ * file channel after every outbound record, when the buffer fills up, or on
+ * {@link #flush()}, so a killed process loses at most the reads since the last
+ * response. When a file grows past the size limit the writer moves on to the
+ * next one and deletes the oldest beyond {@code maxFiles}.
+ */
+public class CaptureWriter {
+    public static final int MAGIC = 0x48445043; // "HDPC"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 8 + 8;
+    public static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1;
+
+    // Directions.
+    public static final byte INBOUND = 0;
+    public static final byte OUTBOUND = 1;
+
+    private static final String PREFIX = "capture-";
+    private static final String SUFFIX = ".bin";
+
+    private final File mDir;
+    private final long mMaxFileBytes;
+    private final int mMaxFiles;
+    private final ByteBuffer mBuffer;
+
+    private FileChannel mChannel;
+    private int mFileIndex;
+    private long mFileBytes;
+
+    public CaptureWriter(File dir, int bufferBytes, long maxFileBytes, int maxFiles)
+            throws IOException {
+        mDir = dir;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFiles = maxFiles;
+        mBuffer = ByteBuffer.allocateDirect(bufferBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // Continue after the newest existing file rather than overwrite it.
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                int index = indexOf(name);
+                if (index >= mFileIndex) {
+                    mFileIndex = index + 1;
+                }
+            }
+        }
+        open();
+    }
+
+    // Records one read or sent APDU.  Safe to call from any channel thread.
+    public synchronized void record(byte direction, int channelId, byte[] data, int offset,
+                                    int length) throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        int size = RECORD_HEADER_SIZE + length;
+        if (mFileBytes + size > mMaxFileBytes && mFileBytes > HEADER_SIZE) {
+            rotate();
+        }
+        if (mBuffer.remaining() < size) {
+            drain();
+        }
+        long now = System.nanoTime();
+        if (mBuffer.remaining() < size) {
+            // Larger than the whole buffer; write it straight through.
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(length).putInt(channelId).putLong(now).put(direction).flip();
+            write(header);
+            write(ByteBuffer.wrap(data, offset, length));
+        } else {
+            mBuffer.putInt(length).putInt(channelId).putLong(now).put(direction)
+                    .put(data, offset, length);
+        }
+        mFileBytes += size;
+        if (direction == OUTBOUND) {
+            drain();
+        }
+    }
+
+    // Pushes buffered records to the file.
+    public synchronized void flush() throws IOException {
+        if (mChannel != null) {
+            drain();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (mChannel != null) {
+            drain();
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    // The capture files currently on disk, oldest first.
+    public static File[] files(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new File[0];
+        }
+        int count = 0;
+        int[] indices = new int[names.length];
+        for (String name : names) {
+            int index = indexOf(name);
+            if (index >= 0) {
+                indices[count++] = index;
+            }
+        }
+        Arrays.sort(indices, 0, count);
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(dir, PREFIX + indices[i] + SUFFIX);
+        }
+        return files;
+    }
+
+    private void open() throws IOException {
+        File file = new File(mDir, PREFIX + mFileIndex + SUFFIX);
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        mChannel.truncate(0);
+        mBuffer.putInt(MAGIC).putShort(VERSION)
+                .putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+        mFileBytes = HEADER_SIZE;
+
+        File[] files = files(mDir);
+        for (int i = 0; i < files.length - mMaxFiles; i++) {
+            files[i].delete();
+        }
+    }
+
+    private void rotate() throws IOException {
+        drain();
+        mChannel.close();
+        mFileIndex++;
+        open();
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        write(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static int indexOf(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and health counters of one session. Each session has its own set,
+ * updated only by its read thread, so updates are plain ordered stores with no
+ * contention between channels; {@link CounterRegistry} adds them up when a
+ * snapshot is asked for.
+ */
+public class ChannelCounters {
+    public static final int BYTES_IN = 0;
+    public static final int BYTES_OUT = 1;
+    // APDUs received, by type; index with APDU_IN + (type - ManagerSession.AARQ).
+    public static final int APDU_IN = 2;
+    public static final int APDU_E2 = APDU_IN;
+    public static final int APDU_E3 = APDU_IN + 1;
+    public static final int APDU_E4 = APDU_IN + 2;
+    public static final int APDU_E5 = APDU_IN + 3;
+    public static final int APDU_E6 = APDU_IN + 4;
+    public static final int APDU_E7 = APDU_IN + 5;
+    public static final int DECODE_ERRORS = 8;
+    public static final int CONFIRMATIONS = 9;
+    public static final int DUPLICATES = 10;
+    public static final int RECONNECTS = 11;
+    // Gauge: bytes of a partial APDU waiting for the rest of it.
+    public static final int PENDING_BYTES = 12;
+    public static final int COUNT = 13;
+
+    public static final String[] NAMES = {
+            "in", "out", "e2", "e3", "e4", "e5", "e6", "e7",
+            "err", "conf", "dup", "reconn", "pending" };
+
+    private final String mLabel;
+    private final AtomicLongArray mValues = new AtomicLongArray(COUNT);
+
+    public ChannelCounters(String label) {
+        mLabel = label;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    // Adds to a counter.  Only the owning thread may call this.
+    public void add(int counter, long delta) {
+        mValues.lazySet(counter, mValues.get(counter) + delta);
+    }
+
+    // Adds to a counter from any thread.
+    public void addShared(int counter, long delta) {
+        mValues.addAndGet(counter, delta);
+    }
+
+    public void set(int gauge, long value) {
+        mValues.lazySet(gauge, value);
+    }
+
+    public long get(int counter) {
+        return mValues.get(counter);
+    }
+
+    // Adds every counter into {@code totals}, gauges included.
+    public void addTo(long[] totals) {
+        for (int i = 0; i < COUNT; i++) {
+            totals[i] += mValues.get(i);
+        }
+    }
+
+    public long[] snapshot() {
+        long[] values = new long[COUNT];
+        addTo(values);
+        return values;
+    }
+
+    // One line of name=value pairs, skipping zeros.
+    public static String format(long[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < COUNT; i++) {
+            if (values[i] != 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(NAMES[i]).append('=').append(values[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
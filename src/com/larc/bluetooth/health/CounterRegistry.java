@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The counters of all live sessions plus what closed sessions left behind.
+ * Totals are only computed when read, so sessions never touch shared state
+ * while counting.
+ */
+public class CounterRegistry {
+    private final CopyOnWriteArrayList<ChannelCounters> mLive =
+            new CopyOnWriteArrayList<ChannelCounters>();
+    // Counters of closed sessions and service-wide events.
+    private final ChannelCounters mRetired = new ChannelCounters("total");
+
+    public void register(ChannelCounters counters) {
+        mLive.add(counters);
+    }
+
+    // Folds a closed session into the totals.  Gauges are dropped with the session.
+    public void unregister(ChannelCounters counters) {
+        if (mLive.remove(counters)) {
+            for (int i = 0; i < ChannelCounters.COUNT; i++) {
+                if (i != ChannelCounters.PENDING_BYTES) {
+                    mRetired.addShared(i, counters.get(i));
+                }
+            }
+        }
+    }
+
+    // Counts a service-wide event, such as a reconnect, from any thread.
+    public void count(int counter) {
+        mRetired.addShared(counter, 1);
+    }
+
+    public List<ChannelCounters> live() {
+        return mLive;
+    }
+
+    public long[] totals() {
+        long[] totals = mRetired.snapshot();
+        for (ChannelCounters counters : mLive) {
+            counters.addTo(totals);
+        }
+        return totals;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Counters:");
+        pw.println("  total " + ChannelCounters.format(totals()));
+        for (ChannelCounters counters : mLive) {
+            pw.println("  " + counters.getLabel() + " "
+                    + ChannelCounters.format(counters.snapshot()));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * Remembers the last few confirmed event reports of a session so that a
+ * retransmission can be recognised. Reports are identified by invoke id and
+ * event time, plus a hash of the event information so that an agent reusing
+ * an invoke id for a different report is not mistaken for a retransmission.
+ *
+ * The window is a fixed ring of primitive keys; the oldest report is forgotten
+ * when a new one comes in. Agents only retransmit the report they are waiting
+ * on, so a small window is plenty. Not thread safe.
+ */
+public class DuplicateFilter {
+    private final long[] mKeys;
+    private final int[] mHashes;
+    private int mSize;
+    private int mNext;
+
+    public DuplicateFilter(int window) {
+        mKeys = new long[window];
+        mHashes = new int[window];
+    }
+
+    // Returns true if the report was seen within the window, otherwise remembers it.
+    public boolean isDuplicate(int invokeId, long eventTime, int payloadHash) {
+        long key = ((long) (invokeId & 0xFFFF) << 32) | (eventTime & 0xFFFFFFFFL);
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i] == key && mHashes[i] == payloadHash) {
+                return true;
+            }
+        }
+        mKeys[mNext] = key;
+        mHashes[mNext] = payloadHash;
+        mNext = (mNext + 1) % mKeys.length;
+        if (mSize < mKeys.length) {
+            mSize++;
+        }
+        return false;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mNext = 0;
+    }
+
+    // FNV-1a over a byte range.
+    public static int hash(byte[] data, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h ^= data[i] & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity window of the most recent readings of one metric of one
+ * device, kept in primitive arrays so that neither appending nor reading boxes
+ * a value.
+ *
+ * Appends are serialized on the ring, as a reconnecting device can briefly
+ * have two channels feeding it: the slot is filled and the sequence is then
+ * published with a release store. Readers take no lock. Any number of them
+ * may take a {@link Snapshot}, which only records the sequence range and
+ * references the backing arrays. Because writers keep going, a reader
+ * iterating a snapshot should call {@link Snapshot#firstIntact()} afterwards
+ * and discard anything it read below that sequence; {@link #copySince} does
+ * that for a caller that wants the last few minutes as plain arrays.
+ */
+public class FloatSeriesRing {
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    private final int mMask;
+    // Number of readings ever appended; the next reading goes to this sequence.
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public FloatSeriesRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mTimestamps = new long[size];
+        mValues = new float[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    // Sequence the next reading will be written to.
+    public long sequence() {
+        return mSequence.get();
+    }
+
+    // Appends a reading.  Uncontended but for the overlap of two channels of one device.
+    public synchronized void append(long timestampMillis, float value) {
+        long seq = mSequence.get();
+        int i = (int) seq & mMask;
+        mTimestamps[i] = timestampMillis;
+        mValues[i] = value;
+        mSequence.lazySet(seq + 1);
+    }
+
+    // Most recent value, or {@code fallback} if nothing was appended yet.
+    public float last(float fallback) {
+        long seq = mSequence.get();
+        return seq == 0 ? fallback : mValues[(int) (seq - 1) & mMask];
+    }
+
+    // Points {@code into} at every reading still held by the ring.
+    public Snapshot snapshot(Snapshot into) {
+        long end = mSequence.get();
+        into.set(this, Math.max(0, end - capacity() + 1), end);
+        return into;
+    }
+
+    // Points {@code into} at the readings taken at or after {@code sinceMillis}.  Timestamps are
+    // expected to be appended in non-decreasing order.
+    public Snapshot snapshotSince(long sinceMillis, Snapshot into) {
+        long end = mSequence.get();
+        into.set(this, firstSince(sinceMillis, end), end);
+        return into;
+    }
+
+    // Copies the readings taken at or after {@code sinceMillis} into the arrays, oldest first,
+    // keeping the most recent ones if there are more than fit.  Readings overwritten while they
+    // were copied are left out.  Returns how many were copied.
+    public int copySince(long sinceMillis, long[] timestamps, float[] values) {
+        long end = mSequence.get();
+        long start = Math.max(firstSince(sinceMillis, end),
+                end - Math.min(timestamps.length, values.length));
+        int n = 0;
+        for (long seq = start; seq < end; seq++) {
+            int i = (int) seq & mMask;
+            timestamps[n] = mTimestamps[i];
+            values[n] = mValues[i];
+            n++;
+        }
+        long torn = mSequence.get() - capacity() + 1 - start;
+        if (torn > 0) {
+            int keep = (int) Math.max(0, n - torn);
+            System.arraycopy(timestamps, n - keep, timestamps, 0, keep);
+            System.arraycopy(values, n - keep, values, 0, keep);
+            n = keep;
+        }
+        return n;
+    }
+
+    // First sequence below {@code end} taken at or after {@code sinceMillis}.
+    private long firstSince(long sinceMillis, long end) {
+        long lo = Math.max(0, end - capacity() + 1);
+        long hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mTimestamps[(int) mid & mMask] < sinceMillis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * A view of a sequence range of a ring. The arrays are the ring's own, so
+     * slots must be addressed through {@link #index(long)}. Instances are
+     * meant to be kept and reused by the reader.
+     */
+    public static final class Snapshot {
+        public long[] timestamps;
+        public float[] values;
+        // First sequence in the view, inclusive.
+        public long start;
+        // Last sequence in the view, exclusive.
+        public long end;
+        private FloatSeriesRing mRing;
+        private int mMask;
+
+        void set(FloatSeriesRing ring, long start, long end) {
+            mRing = ring;
+            mMask = ring.mMask;
+            timestamps = ring.mTimestamps;
+            values = ring.mValues;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int size() {
+            return (int) (end - start);
+        }
+
+        public int index(long sequence) {
+            return (int) sequence & mMask;
+        }
+
+        // Lowest sequence of this view that the writer has not overwritten yet.  Readings below
+        // it may have been torn while they were read.
+        public long firstIntact() {
+            long intact = mRing.sequence() - mRing.capacity() + 1;
+            return intact > start ? intact : start;
+        }
+    }
+}
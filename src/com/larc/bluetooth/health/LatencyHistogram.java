@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution with fixed power-of-two buckets in microseconds: bucket
+ * 0 counts latencies under 1us and bucket i those in [2^(i-1), 2^i) us, up to
+ * about half an hour. Recording is a single atomic increment and never
+ * allocates; percentiles are resolved to the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        mCounts.incrementAndGet(bucket < BUCKETS ? bucket : BUCKETS - 1);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    // Upper bound, in microseconds, of the bucket holding the given percentile (0-100), or 0 if
+    // nothing was recorded.
+    public long percentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+}
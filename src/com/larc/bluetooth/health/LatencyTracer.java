@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples how long event reports take to go through the pipeline, from the
+ * read call returning to the reading reaching the client. Every stage is
+ * measured from the read's return and collected in a {@link LatencyHistogram}
+ * per device data type.
+ *
+ * One report in every few of a data type is sampled, counted over all of its
+ * channels, so agents that connect for every measurement are sampled too.
+ * Each channel owns a {@link Trace}, which is reused for every read; a trace
+ * that is not sampled costs one branch per stage.
+ */
+public class LatencyTracer {
+    // Stages, in pipeline order.  Every stage is timed from the read returning.
+    public static final int STAGE_FRAMED = 0;
+    public static final int STAGE_DECODED = 1;
+    public static final int STAGE_CONFIRMED = 2;
+    public static final int STAGE_STORED = 3;
+    public static final int STAGE_PUBLISHED = 4;
+    public static final int STAGE_DELIVERED = 5;
+    public static final int STAGE_COUNT = 6;
+
+    public static final String[] STAGE_NAMES = {
+            "framed", "decoded", "confirmed", "stored", "published", "delivered" };
+
+    // Percentiles reported by {@link #percentiles(int)}.
+    public static final double[] PERCENTILES = { 50, 90, 99 };
+
+    /**
+     * Stage histograms of one data type, and its reports so far.
+     */
+    private static final class Series {
+        final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+        final AtomicInteger reports = new AtomicInteger();
+
+        Series() {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                histograms[stage] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private final int mSampleEvery;
+    // Per data type series; copied on insert, scanned on lookup.
+    private volatile int[] mDataTypes = new int[0];
+    private volatile Series[] mSeries = new Series[0];
+
+    // Traces one report in {@code sampleEvery} of each data type.
+    public LatencyTracer(int sampleEvery) {
+        mSampleEvery = Math.max(1, sampleEvery);
+    }
+
+    public Trace newTrace(int dataType) {
+        return new Trace(series(dataType));
+    }
+
+    // Data types with at least one trace, in order of appearance.
+    public int[] dataTypes() {
+        return mDataTypes.clone();
+    }
+
+    // Percentiles in microseconds for the data type, as STAGE_COUNT rows of PERCENTILES columns.
+    public long[] percentiles(int dataType) {
+        LatencyHistogram[] histograms = series(dataType).histograms;
+        long[] result = new long[STAGE_COUNT * PERCENTILES.length];
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                result[stage * PERCENTILES.length + p] =
+                        histograms[stage].percentileMicros(PERCENTILES[p]);
+            }
+        }
+        return result;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Latency (us, p50/p90/p99 since read returned):");
+        int[] dataTypes = mDataTypes;
+        Series[] all = mSeries;
+        for (int i = 0; i < dataTypes.length; i++) {
+            pw.print(String.format("  0x%04X", dataTypes[i]));
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                LatencyHistogram h = all[i].histograms[stage];
+                pw.print(String.format(" %s=%d/%d/%d(n=%d)", STAGE_NAMES[stage],
+                        h.percentileMicros(50), h.percentileMicros(90),
+                        h.percentileMicros(99), h.count()));
+            }
+            pw.println();
+        }
+    }
+
+    private Series series(int dataType) {
+        int[] dataTypes = mDataTypes;
+        for (int i = 0; i < dataTypes.length; i++) {
+            if (dataTypes[i] == dataType) {
+                return mSeries[i];
+            }
+        }
+        synchronized (this) {
+            dataTypes = mDataTypes;
+            for (int i = 0; i < dataTypes.length; i++) {
+                if (dataTypes[i] == dataType) {
+                    return mSeries[i];
+                }
+            }
+            int n = dataTypes.length;
+            Series series = new Series();
+            Series[] all = new Series[n + 1];
+            System.arraycopy(mSeries, 0, all, 0, n);
+            all[n] = series;
+            int[] types = new int[n + 1];
+            System.arraycopy(dataTypes, 0, types, 0, n);
+            types[n] = dataType;
+            mSeries = all;
+            mDataTypes = types;
+            return series;
+        }
+    }
+
+    /**
+     * Stage timestamps of the report currently going through one channel. Only
+     * the channel's read thread may use it.
+     */
+    public final class Trace {
+        private final Series mSeries;
+        private final LatencyHistogram[] mStageHistograms;
+        private final long[] mStamps = new long[STAGE_COUNT];
+        private long mStart;
+        private boolean mSampled;
+
+        Trace(Series series) {
+            mSeries = series;
+            mStageHistograms = series.histograms;
+        }
+
+        // Starts a read that returned at {@code readNanos}.
+        public void begin(long readNanos) {
+            mStart = readNanos;
+        }
+
+        // An event report was framed in the current read; decides whether it is sampled.  The
+        // first sampled report of a read is the one timed.
+        public void report() {
+            if (mSampled) {
+                return;
+            }
+            int n = mSeries.reports.getAndIncrement() & Integer.MAX_VALUE;
+            mSampled = n % mSampleEvery == 0;
+            if (mSampled) {
+                for (int i = 0; i < STAGE_COUNT; i++) {
+                    mStamps[i] = 0;
+                }
+            }
+        }
+
+        // Marks a stage as reached.  The first mark of a stage within a read counts.
+        public void mark(int stage) {
+            if (mSampled && mStamps[stage] == 0) {
+                mStamps[stage] = System.nanoTime();
+            }
+        }
+
+        // Ends the read and records the stages it reached.
+        public void end() {
+            if (!mSampled) {
+                return;
+            }
+            mSampled = false;
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (mStamps[i] != 0) {
+                    mStageHistograms[i].record(mStamps[i] - mStart);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The IEEE 11073-20601 manager side of one health channel: frames the bytes
+ * read from the channel into APDUs, answers the agent, and hands the readings
+ * its {@link ReportDecoder} finds in event reports to a {@link Listener}.
+ *
+ * This class has no Android dependencies; the service feeds it from the
+ * channel's read thread and supplies a {@link Transport} that writes to the
+ * channel file descriptor. All calls for one session must come from one
+ * thread, and responses are written on that thread, in order.
+ */
+public class ManagerSession {
+    // APDU types.
+    public static final int AARQ = 0xE2;
+    public static final int AARE = 0xE3;
+    public static final int RLRQ = 0xE4;
+    public static final int RLRE = 0xE5;
+    public static final int ABRT = 0xE6;
+    public static final int PRST = 0xE7;
+
+    // DATA-apdu choices.
+    public static final int ROIV_CMIP_EVENT_REPORT = 0x0100;
+    public static final int ROIV_CMIP_CONFIRMED_EVENT_REPORT = 0x0101;
+    public static final int RORS_CMIP_GET = 0x0203;
+
+    // Event types.
+    public static final int MDC_NOTI_CONFIG = 0x0D1C;
+    public static final int MDC_NOTI_SCAN_REPORT_FIXED = 0x0D1D;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int DEFAULT_MAX_APDU_SIZE = 8 * 1024;
+
+    // Retransmissions only ever repeat the report still waiting for its confirmation.
+    private static final int DUPLICATE_WINDOW = 16;
+
+    // Offset of the device configuration id in an AARQ.
+    private static final int AARQ_CONFIG_ID = 44;
+    // Extended configurations are only known from the agent's configuration report.
+    private static final int EXTENDED_CONFIG_MIN = 0x4000;
+
+    // Association and configuration results.
+    private static final int ACCEPTED_UNKNOWN_CONFIG = 3;
+    private static final int UNSUPPORTED_CONFIG = 2;
+
+    // Association response.  Accepts the agent's configuration; the system id is the phone's.
+    private static final byte[] AARE_ACCEPTED = new byte[] {
+            (byte) 0xE3, (byte) 0x00,
+            (byte) 0x00, (byte) 0x2C,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x50, (byte) 0x79,
+            (byte) 0x00, (byte) 0x26,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x08,  //bt add for phone, can be automate in the future
+            (byte) 0x3C, (byte) 0x5A, (byte) 0x37, (byte) 0xFF,
+            (byte) 0xFE, (byte) 0x95, (byte) 0xEE, (byte) 0xE3,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+
+    // The same, asking the agent to send its configuration.
+    private static final byte[] AARE_ACCEPTED_UNKNOWN_CONFIG = withResult(AARE_ACCEPTED,
+            ACCEPTED_UNKNOWN_CONFIG);
+
+    // Get of all MDS attributes.
+    private static final byte[] GET_MDS = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x0C,
+            (byte) 0x00, (byte) 0x24,
+            (byte) 0x01, (byte) 0x03,
+            (byte) 0x00, (byte) 0x06,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Release response.
+    private static final byte[] RLRE_NORMAL = new byte[] {
+            (byte) 0xE5, (byte) 0x00,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Abort, reason undefined.
+    private static final byte[] ABRT_UNDEFINED = new byte[] {
+            (byte) 0xE6, (byte) 0x00,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x00, (byte) 0x00 };
+
+    /**
+     * Writes an APDU to the channel.
+     */
+    public interface Transport {
+        void send(byte[] apdu, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Receives what happens on the session, on the thread feeding it.
+     */
+    public interface Listener {
+        void onAssociated(ManagerSession session);
+
+        // A newly decoded reading.  Not called again for a retransmitted report.
+        void onObservation(ManagerSession session, int metric, long timestampMillis,
+                float value);
+
+        // A confirmed event report was received again and only confirmed.
+        void onDuplicate(ManagerSession session, int invokeId);
+
+        // The agent released the association or aborted it.
+        void onReleased(ManagerSession session);
+
+        // An APDU could not be framed; the association was aborted.
+        void onProtocolError(ManagerSession session, int type, int length);
+    }
+
+    private final String mAddress;
+    private final int mChannelId;
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final ReportDecoder mDecoder;
+    private final int mMaxApduSize;
+    private final DuplicateFilter mDuplicates = new DuplicateFilter(DUPLICATE_WINDOW);
+    private final ChannelCounters mCounters;
+
+    // Partial APDU carried over between reads.
+    private byte[] mPending = new byte[256];
+    private int mPendingLength;
+    // Bytes of an oversized APDU still to be discarded.
+    private int mSkip;
+    // Stage timing of the report in the current read, if the owner traces this session.
+    private LatencyTracer.Trace mTrace;
+    // Configuration the agent associated with, or reported since, and whether the decoder can
+    // read reports of it.
+    private int mConfigId;
+    private boolean mConfigKnown;
+    // Readings of the report being decoded; grown when a report holds more.
+    private int[] mObservedMetrics = new int[4];
+    private long[] mObservedTimes = new long[4];
+    private float[] mObservedValues = new float[4];
+    private int mObservations;
+
+    // Confirmation for event reports; invoke id, handle, time and type are filled per report.
+    private final byte[] mEventReportResult = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x12,
+            (byte) 0x00, (byte) 0x10,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x02, (byte) 0x01,
+            (byte) 0x00, (byte) 0x0A,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x0D, (byte) 0x1D,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Confirmation for configuration reports; the report id and the result are the last four bytes.
+    private final byte[] mConfigReportResult = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x16,
+            (byte) 0x00, (byte) 0x14,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x02, (byte) 0x01,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x0D, (byte) 0x1C,
+            (byte) 0x00, (byte) 0x04,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00 };
+
+    // {@code decoder} may be null, in which case reports are confirmed but not decoded.
+    public ManagerSession(String address, int channelId, ReportDecoder decoder,
+                          Transport transport, Listener listener) {
+        this(address, channelId, decoder, transport, listener, DEFAULT_MAX_APDU_SIZE);
+    }
+
+    public ManagerSession(String address, int channelId, ReportDecoder decoder,
+                          Transport transport, Listener listener, int maxApduSize) {
+        mAddress = address;
+        mChannelId = channelId;
+        mDecoder = decoder;
+        mTransport = transport;
+        mListener = listener;
+        mMaxApduSize = maxApduSize;
+        mCounters = new ChannelCounters(address + "/" + channelId);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getChannelId() {
+        return mChannelId;
+    }
+
+    public ChannelCounters getCounters() {
+        return mCounters;
+    }
+
+    // Marks the framing, decoding and confirmation stages of each read on {@code trace}.  The
+    // owner begins and ends the trace around {@link #onData}.
+    public void setTrace(LatencyTracer.Trace trace) {
+        mTrace = trace;
+    }
+
+    // Feeds bytes read from the channel.  A read may hold part of an APDU or several of them.
+    public void onData(byte[] data, int offset, int length) throws IOException {
+        mCounters.add(ChannelCounters.BYTES_IN, length);
+        frame(data, offset, length);
+        mCounters.set(ChannelCounters.PENDING_BYTES, mPendingLength);
+    }
+
+    private void frame(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (mSkip > 0) {
+                int n = Math.min(mSkip, end - offset);
+                mSkip -= n;
+                offset += n;
+                continue;
+            }
+            // Fast path: a whole APDU straight from the read buffer.
+            if (mPendingLength == 0 && end - offset >= HEADER_SIZE) {
+                int size = apduSize(data, offset);
+                if (size < 0) {
+                    protocolError(data[offset] & 0xFF, size);
+                    return;
+                }
+                if (size > mMaxApduSize) {
+                    protocolError(data[offset] & 0xFF, size);
+                    mSkip = size;
+                    continue;
+                }
+                if (end - offset >= size) {
+                    handleApdu(data, offset, size);
+                    offset += size;
+                    continue;
+                }
+            }
+            // Slow path: gather the APDU in the pending buffer.
+            if (mPendingLength < HEADER_SIZE) {
+                int n = Math.min(HEADER_SIZE - mPendingLength, end - offset);
+                System.arraycopy(data, offset, mPending, mPendingLength, n);
+                mPendingLength += n;
+                offset += n;
+                if (mPendingLength < HEADER_SIZE) {
+                    continue;
+                }
+                int size = apduSize(mPending, 0);
+                if (size < 0 || size > mMaxApduSize) {
+                    mPendingLength = 0;
+                    protocolError(mPending[0] & 0xFF, size);
+                    if (size < 0) {
+                        return;
+                    }
+                    mSkip = size - HEADER_SIZE;
+                    continue;
+                }
+                if (size > mPending.length) {
+                    byte[] grown = new byte[Math.max(size, mPending.length * 2)];
+                    System.arraycopy(mPending, 0, grown, 0, mPendingLength);
+                    mPending = grown;
+                }
+            }
+            int size = apduSize(mPending, 0);
+            int n = Math.min(size - mPendingLength, end - offset);
+            System.arraycopy(data, offset, mPending, mPendingLength, n);
+            mPendingLength += n;
+            offset += n;
+            if (mPendingLength == size) {
+                mPendingLength = 0;
+                handleApdu(mPending, 0, size);
+            }
+        }
+    }
+
+    // Total size of the APDU starting at {@code offset}, or -1 if the header is not a valid one.
+    private static int apduSize(byte[] data, int offset) {
+        int type = data[offset] & 0xFF;
+        if (type < AARQ || type > PRST || data[offset + 1] != 0) {
+            return -1;
+        }
+        return HEADER_SIZE + (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+    }
+
+    private void handleApdu(byte[] apdu, int offset, int length) throws IOException {
+        mCounters.add(ChannelCounters.APDU_IN + (apdu[offset] & 0xFF) - AARQ, 1);
+        switch (apdu[offset] & 0xFF) {
+            case AARQ:
+                // Accept the association and ask for the MDS attributes right away.  An agent with
+                // a configuration the decoder does not know is asked for it first.
+                mDuplicates.clear();
+                mConfigId = length >= AARQ_CONFIG_ID + 2 ? u16(apdu, offset + AARQ_CONFIG_ID) : 0;
+                mConfigKnown = mDecoder == null
+                        || (mConfigId < EXTENDED_CONFIG_MIN && mDecoder.understands(mConfigId));
+                send(mConfigKnown ? AARE_ACCEPTED : AARE_ACCEPTED_UNKNOWN_CONFIG);
+                send(GET_MDS);
+                mListener.onAssociated(this);
+                break;
+            case PRST:
+                handleData(apdu, offset, length);
+                break;
+            case RLRQ:
+                send(RLRE_NORMAL);
+                mListener.onReleased(this);
+                break;
+            case ABRT:
+                mListener.onReleased(this);
+                break;
+            default:
+                // AARE and RLRE are never sent to a manager; ignore them.
+                break;
+        }
+    }
+
+    private void handleData(byte[] apdu, int offset, int length) throws IOException {
+        // PRST header, octet string length, invoke id, choice, choice length.
+        if (length < 12) {
+            mCounters.add(ChannelCounters.DECODE_ERRORS, 1);
+            return;
+        }
+        int invokeId = u16(apdu, offset + 6);
+        int choice = u16(apdu, offset + 8);
+        if (choice != ROIV_CMIP_CONFIRMED_EVENT_REPORT && choice != ROIV_CMIP_EVENT_REPORT) {
+            // Responses to our own requests (the MDS attributes) need no answer.
+            return;
+        }
+        // Object handle, event time, event type and event info length.
+        if (length < 22) {
+            mCounters.add(ChannelCounters.DECODE_ERRORS, 1);
+            return;
+        }
+        long eventTime = u32(apdu, offset + 14);
+        int eventType = u16(apdu, offset + 18);
+        if (eventType == MDC_NOTI_CONFIG) {
+            if (length >= 24) {
+                mConfigId = u16(apdu, offset + 22);
+                mConfigKnown = mDecoder == null || mDecoder.accepts(apdu, offset, length);
+                if (choice == ROIV_CMIP_CONFIRMED_EVENT_REPORT) {
+                    confirmConfigReport(apdu, offset, mConfigKnown ? 0 : UNSUPPORTED_CONFIG);
+                }
+            }
+            return;
+        }
+        if (mTrace != null) {
+            mTrace.report();
+        }
+        mark(LatencyTracer.STAGE_FRAMED);
+        boolean confirmed = choice == ROIV_CMIP_CONFIRMED_EVENT_REPORT;
+        boolean duplicate = confirmed && mDuplicates.isDuplicate(invokeId, eventTime,
+                DuplicateFilter.hash(apdu, offset + 18, length - 18));
+        if (duplicate) {
+            mCounters.add(ChannelCounters.DUPLICATES, 1);
+            mListener.onDuplicate(this, invokeId);
+        } else if (eventType == MDC_NOTI_SCAN_REPORT_FIXED) {
+            decodeReport(apdu, offset, length);
+        }
+        if (confirmed) {
+            confirmEventReport(apdu, offset);
+            mark(LatencyTracer.STAGE_CONFIRMED);
+        }
+    }
+
+    // A report of a configuration the decoder does not know counts as a decode error, like a
+    // malformed one: guessing at its layout would produce readings of the wrong metric.  The
+    // readings are collected while decoding and handed on once the whole report is decoded.
+    private void decodeReport(byte[] apdu, int offset, int length) {
+        if (mDecoder == null) {
+            return;
+        }
+        mObservations = 0;
+        boolean decoded = mConfigKnown
+                && mDecoder.decode(this, apdu, offset, length, System.currentTimeMillis());
+        mark(LatencyTracer.STAGE_DECODED);
+        if (!decoded) {
+            mCounters.add(ChannelCounters.DECODE_ERRORS, 1);
+            return;
+        }
+        for (int i = 0; i < mObservations; i++) {
+            mListener.onObservation(this, mObservedMetrics[i], mObservedTimes[i],
+                    mObservedValues[i]);
+        }
+    }
+
+    // Called by the decoder for each reading in a report.
+    void observe(int metric, long timestampMillis, float value) {
+        if (mObservations == mObservedMetrics.length) {
+            int n = 2 * mObservations;
+            mObservedMetrics = Arrays.copyOf(mObservedMetrics, n);
+            mObservedTimes = Arrays.copyOf(mObservedTimes, n);
+            mObservedValues = Arrays.copyOf(mObservedValues, n);
+        }
+        mObservedMetrics[mObservations] = metric;
+        mObservedTimes[mObservations] = timestampMillis;
+        mObservedValues[mObservations] = value;
+        mObservations++;
+    }
+
+    // Echoes invoke id, object handle, event time and event type back to the agent.
+    private void confirmEventReport(byte[] apdu, int offset) throws IOException {
+        byte[] result = mEventReportResult;
+        System.arraycopy(apdu, offset + 6, result, 6, 2);
+        System.arraycopy(apdu, offset + 12, result, 12, 8);
+        send(result);
+        mCounters.add(ChannelCounters.CONFIRMATIONS, 1);
+    }
+
+    // Answers the configuration the agent reported, echoing its configuration report id.
+    private void confirmConfigReport(byte[] apdu, int offset, int configResult)
+            throws IOException {
+        byte[] result = mConfigReportResult;
+        System.arraycopy(apdu, offset + 6, result, 6, 2);
+        System.arraycopy(apdu, offset + 12, result, 12, 6);
+        System.arraycopy(apdu, offset + 22, result, 22, 2);
+        result[24] = (byte) (configResult >> 8);
+        result[25] = (byte) configResult;
+        send(result);
+        mCounters.add(ChannelCounters.CONFIRMATIONS, 1);
+    }
+
+    private void protocolError(int type, int size) throws IOException {
+        send(ABRT_UNDEFINED);
+        mCounters.add(ChannelCounters.DECODE_ERRORS, 1);
+        mListener.onProtocolError(this, type, size);
+    }
+
+    private void mark(int stage) {
+        if (mTrace != null) {
+            mTrace.mark(stage);
+        }
+    }
+
+    private void send(byte[] apdu) throws IOException {
+        mTransport.send(apdu, 0, apdu.length);
+        mCounters.add(ChannelCounters.BYTES_OUT, apdu.length);
+    }
+
+    private static byte[] withResult(byte[] aare, int result) {
+        byte[] copy = aare.clone();
+        copy[4] = (byte) (result >> 8);
+        copy[5] = (byte) result;
+        return copy;
+    }
+
+    private static int u16(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+
+    private static long u32(byte[] b, int i) {
+        return ((long) u16(b, i) << 16) | u16(b, i + 2);
+    }
+}
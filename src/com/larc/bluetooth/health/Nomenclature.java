@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * IEEE 11073-10101 nomenclature codes for the metrics this application keeps
+ * track of. Only the term codes (partition SCADA) are listed; they are used as
+ * metric keys throughout the service.
+ */
+public final class Nomenclature {
+    // Blood pressure, systolic.
+    public static final int MDC_PRESS_BLD_NONINV_SYS = 0x4A05;
+    // Blood pressure, diastolic.
+    public static final int MDC_PRESS_BLD_NONINV_DIA = 0x4A06;
+    // Blood pressure, mean arterial.
+    public static final int MDC_PRESS_BLD_NONINV_MEAN = 0x4A07;
+    // Pulse rate.
+    public static final int MDC_PULS_RATE_NON_INV = 0x482A;
+    // Body temperature.
+    public static final int MDC_TEMP_BODY = 0x4B5C;
+    // Body weight.
+    public static final int MDC_MASS_BODY_ACTUAL = 0xE140;
+    // Body mass index.
+    public static final int MDC_RATIO_MASS_BODY_LEN_SQ = 0xE150;
+    // Body fat.
+    public static final int MDC_BODY_FAT = 0xE14C;
+
+    private Nomenclature() {
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams readings to a channel as CSV, JSON Lines or length-prefixed
+ * binary records. Each reading is encoded straight into a fixed chunk buffer
+ * that is written out whenever it fills, so an export of any length runs in
+ * constant memory and allocates nothing per reading.
+ *
+ * Pass it to {@link ObservationLog#scan} to export stored readings, or call
+ * {@link #visit} for readings as they arrive. Values are written with up to
+ * three decimals.
+ *
+ * The binary format starts with the int {@link #BINARY_MAGIC} and a short
+ * version, followed per reading by a short payload length and the payload:
+ *
+ *   long timestampMillis, 6-byte device address, int metric, float value
+ */
+public class ObservationExporter implements ObservationLog.Visitor {
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON_LINES = 1;
+    public static final int FORMAT_BINARY = 2;
+
+    public static final int BINARY_MAGIC = 0x48445058;
+    public static final int BINARY_VERSION = 1;
+    public static final int BINARY_PAYLOAD_SIZE = 8 + 6 + 4 + 4;
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    // Longest encoded reading, with room to spare.
+    private static final int MAX_RECORD_SIZE = 128;
+    private static final byte[] CSV_HEADER = ascii("timestamp_ms,device,metric,value\n");
+    private static final byte[] JSON_TIMESTAMP = ascii("{\"t\":");
+    private static final byte[] JSON_DEVICE = ascii(",\"device\":\"");
+    private static final byte[] JSON_METRIC = ascii("\",\"metric\":");
+    private static final byte[] JSON_VALUE = ascii(",\"value\":");
+    private static final byte[] NAN = ascii("NaN");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private final WritableByteChannel mOut;
+    private final int mFormat;
+    private final byte[] mChunk;
+    private final ByteBuffer mChunkBuffer;
+    private final byte[] mDigits = new byte[20];
+    private int mLength;
+    private long mCount;
+    private IOException mError;
+
+    public ObservationExporter(WritableByteChannel out, int format) {
+        this(out, format, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ObservationExporter(WritableByteChannel out, int format, int chunkSize) {
+        if (format < FORMAT_CSV || format > FORMAT_BINARY) {
+            throw new IllegalArgumentException("Unknown export format " + format);
+        }
+        mOut = out;
+        mFormat = format;
+        mChunk = new byte[Math.max(chunkSize, MAX_RECORD_SIZE * 2)];
+        mChunkBuffer = ByteBuffer.wrap(mChunk);
+        if (format == FORMAT_CSV) {
+            put(CSV_HEADER);
+        } else if (format == FORMAT_BINARY) {
+            putInt(BINARY_MAGIC);
+            putShort(BINARY_VERSION);
+        }
+    }
+
+    // Readings written so far.
+    public long getCount() {
+        return mCount;
+    }
+
+    // Encodes one reading.  Returns false, ending a scan, once the channel failed.
+    public boolean visit(long sequence, long timestampMillis, long device, int metric,
+                         float value, int flags) {
+        if (mError != null) {
+            return false;
+        }
+        if (mChunk.length - mLength < MAX_RECORD_SIZE && !drain()) {
+            return false;
+        }
+        switch (mFormat) {
+            case FORMAT_CSV:
+                putLong(timestampMillis);
+                putByte(',');
+                putAddress(device);
+                putByte(',');
+                putLong(metric);
+                putByte(',');
+                putValue(value, NAN);
+                putByte('\n');
+                break;
+            case FORMAT_JSON_LINES:
+                put(JSON_TIMESTAMP);
+                putLong(timestampMillis);
+                put(JSON_DEVICE);
+                putAddress(device);
+                put(JSON_METRIC);
+                putLong(metric);
+                put(JSON_VALUE);
+                putValue(value, NULL);
+                putByte('}');
+                putByte('\n');
+                break;
+            default:
+                putShort(BINARY_PAYLOAD_SIZE);
+                putInt((int) (timestampMillis >>> 32));
+                putInt((int) timestampMillis);
+                putShort((int) (device >>> 32));
+                putInt((int) device);
+                putInt(metric);
+                putInt(Float.floatToIntBits(value));
+                break;
+        }
+        mCount++;
+        return true;
+    }
+
+    // Writes out what is buffered and returns the number of readings exported.  Throws the error
+    // that stopped the export, if any.
+    public long finish() throws IOException {
+        drain();
+        if (mError != null) {
+            throw mError;
+        }
+        return mCount;
+    }
+
+    private boolean drain() {
+        mChunkBuffer.clear().limit(mLength);
+        try {
+            while (mChunkBuffer.hasRemaining()) {
+                mOut.write(mChunkBuffer);
+            }
+        } catch (IOException e) {
+            mError = e;
+            return false;
+        } finally {
+            mLength = 0;
+        }
+        return true;
+    }
+
+    private void putByte(int b) {
+        mChunk[mLength++] = (byte) b;
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, mChunk, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void putShort(int value) {
+        mChunk[mLength++] = (byte) (value >> 8);
+        mChunk[mLength++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        putShort(value >>> 16);
+        putShort(value);
+    }
+
+    // Decimal digits of a value, without going through a String.
+    private void putLong(long value) {
+        if (value < 0) {
+            putByte('-');
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            mChunk[mLength++] = mDigits[--n];
+        }
+    }
+
+    private void putValue(float value, byte[] notANumber) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            put(notANumber);
+            return;
+        }
+        long thousandths = Math.round(value * 1000.0);
+        if (Math.abs(thousandths) >= Long.MAX_VALUE / 10) {
+            put(ascii(Float.toString(value)));
+            return;
+        }
+        if (thousandths < 0) {
+            putByte('-');
+            thousandths = -thousandths;
+        }
+        putLong(thousandths / 1000);
+        int fraction = (int) (thousandths % 1000);
+        if (fraction != 0) {
+            putByte('.');
+            int divisor = 100;
+            while (fraction != 0) {
+                putByte('0' + fraction / divisor);
+                fraction %= divisor;
+                divisor /= 10;
+            }
+        }
+    }
+
+    private void putAddress(long device) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (device >>> shift) & 0xFF;
+            mChunk[mLength++] = HEX[b >> 4];
+            mChunk[mLength++] = HEX[b & 0xF];
+            if (shift > 0) {
+                putByte(':');
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only store of every decoded reading, in fixed-width records:
+ *
+ *   long timestampMillis, long device, int metric, float value, int flags
+ *
+ * A record's sequence number is its position in the file. Each append is
+ * written through to the file before the reading is handed on, so a reading
+ * survives the process being killed; {@link #FLAG_PUBLISHED} is set in place
+ * once the reading reached a client, which lets a restarted service find the
+ * readings it still owes.
+ *
+ * Devices are stored as the 48-bit value of their Bluetooth address.
+ * Timestamps are receive times, so records are in timestamp order and a time
+ * range is found by binary search.
+ */
+public class ObservationLog {
+    public static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4;
+    public static final int FLAG_PUBLISHED = 1;
+    // Device filter of {@link #scan(long, long, long, Visitor)} matching every device.
+    public static final long ALL_DEVICES = -1;
+
+    private static final int FLAGS_OFFSET = 24;
+
+    /**
+     * Receives records from {@link #scan}. Returning false stops the scan.
+     */
+    public interface Visitor {
+        boolean visit(long sequence, long timestampMillis, long device, int metric, float value,
+                int flags);
+    }
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer mFlags = ByteBuffer.allocate(4);
+    private long mSize;
+
+    public ObservationLog(File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        // Drop a record torn by a crash.
+        mSize = mChannel.size() / RECORD_SIZE;
+        mChannel.truncate(mSize * RECORD_SIZE);
+    }
+
+    // Number of records.
+    public synchronized long size() {
+        return mSize;
+    }
+
+    // Appends a reading and returns its sequence number.
+    public synchronized long append(long timestampMillis, long device, int metric, float value)
+            throws IOException {
+        mRecord.clear();
+        mRecord.putLong(timestampMillis).putLong(device).putInt(metric).putFloat(value).putInt(0);
+        mRecord.flip();
+        long seq = mSize;
+        write(mRecord, seq * RECORD_SIZE);
+        mSize++;
+        return seq;
+    }
+
+    // Marks a reading as delivered to a client.
+    public synchronized void markPublished(long sequence) throws IOException {
+        if (sequence >= mSize) {
+            // Cleared since; the reading was published along with the rest.
+            return;
+        }
+        mFlags.clear();
+        mFlags.putInt(FLAG_PUBLISHED).flip();
+        write(mFlags, sequence * RECORD_SIZE + FLAGS_OFFSET);
+    }
+
+    // Drops every record, after they were moved to a BlockStore.  Sequence numbers start over.
+    public synchronized void clear() throws IOException {
+        mChannel.truncate(0);
+        mChannel.force(false);
+        mSize = 0;
+    }
+
+    // Visits the records from {@code fromSequence} on, in order, reading in large chunks.
+    public void scan(long fromSequence, Visitor visitor) throws IOException {
+        scan(fromSequence, Long.MIN_VALUE, Long.MAX_VALUE, ALL_DEVICES, visitor);
+    }
+
+    // Visits the records of {@code device}, or of ALL_DEVICES, with fromMillis <= timestamp <
+    // toMillis.  Records outside the filter are skipped without being decoded.
+    public void scan(long fromMillis, long toMillis, long device, Visitor visitor)
+            throws IOException {
+        scan(sequenceAt(fromMillis), fromMillis, toMillis, device, visitor);
+    }
+
+    // Sequence of the first record with a timestamp at or after {@code timestampMillis}.
+    public long sequenceAt(long timestampMillis) throws IOException {
+        ByteBuffer timestamp = ByteBuffer.allocate(8);
+        long low = 0;
+        long high = size();
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            timestamp.clear();
+            read(timestamp, mid * RECORD_SIZE);
+            if (timestamp.getLong(0) < timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void scan(long fromSequence, long fromMillis, long toMillis, long device,
+                      Visitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+        long seq = Math.max(0, fromSequence);
+        long end = size();
+        while (seq < end) {
+            buffer.clear();
+            int records = (int) Math.min(end - seq, buffer.capacity() / RECORD_SIZE);
+            buffer.limit(records * RECORD_SIZE);
+            if (!read(buffer, seq * RECORD_SIZE)) {
+                return;
+            }
+            for (int i = 0; i < records; i++, seq++) {
+                int position = i * RECORD_SIZE;
+                long timestampMillis = buffer.getLong(position);
+                if (timestampMillis >= toMillis) {
+                    return;
+                }
+                long recordDevice = buffer.getLong(position + 8);
+                if (timestampMillis < fromMillis
+                        || (device != ALL_DEVICES && recordDevice != device)) {
+                    continue;
+                }
+                if (!visitor.visit(seq, timestampMillis, recordDevice,
+                        buffer.getInt(position + 16), buffer.getFloat(position + 20),
+                        buffer.getInt(position + FLAGS_OFFSET))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    // 48-bit value of a "00:11:22:AA:BB:CC" address.
+    public static long deviceKey(String address) {
+        long key = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+            }
+        }
+        return key;
+    }
+
+    // Address string of a device key.
+    public static String address(long device) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (device >>> shift) & 0xFF;
+            sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            if (shift > 0) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Fills the buffer from {@code position}; false if the file ended first.
+    private boolean read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = mChannel.read(buffer, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
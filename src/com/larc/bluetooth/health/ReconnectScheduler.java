@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Brings dropped channels back. Each device that lost its channel is retried
+ * with jittered exponential backoff, while only a few attempts run at once so
+ * the radio is not kept busy paging devices that are out of range.
+ *
+ * The first retry waits about half the gap the device usually stays away
+ * for, learned from earlier dropouts, so a device that always comes back
+ * after a few seconds is retried right then and one that is taken away for
+ * hours is not paged for nothing. A device that stays away past the give-up
+ * time is no longer paged; it is retried again once it connects by itself.
+ * Connect latency is kept per device.
+ *
+ * Only a channel lost without a release is a dropout: the owner calls
+ * {@link #release} when the user closes the channel or the agent ends the
+ * association, and the disconnect that follows schedules nothing.
+ *
+ * The scheduler owns no thread: the owner reports channel events and calls
+ * {@link #poll} at the time it returns. All times are in milliseconds on a
+ * monotonic clock.
+ */
+public class ReconnectScheduler {
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_GIVE_UP_MILLIS = 12 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    private static final float GAP_EWMA_ALPHA = 0.3f;
+
+    /**
+     * Starts a connection attempt. The outcome is reported back through
+     * {@link #onConnected} or {@link #onConnectFailed}.
+     */
+    public interface Connector {
+        // Returns false if the attempt could not be started.
+        boolean connect(String address, int dataType);
+    }
+
+    private static final class Device {
+        final String address;
+        final LatencyHistogram connectLatency = new LatencyHistogram();
+        int dataType;
+        boolean connected;
+        // Reconnect when due; cleared once connected, when the channel was released or when the
+        // device stayed away past the give-up time.
+        boolean wanted;
+        long wantedSinceMillis;
+        // The user closed the channel or the agent ended the association; the disconnect that
+        // follows is not a dropout.
+        boolean released;
+        int failures;
+        long dueMillis;
+        long attemptStartedMillis = -1;
+        long disconnectedMillis = -1;
+        long lastSeenMillis = -1;
+        // Typical time from a dropout to the channel being back, or -1 until known.
+        float typicalGapMillis = -1;
+        long attempts;
+        long successes;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        boolean inFlight() {
+            return attemptStartedMillis >= 0;
+        }
+    }
+
+    private static final Comparator<Device> BY_DUE = new Comparator<Device>() {
+        public int compare(Device a, Device b) {
+            return a.dueMillis < b.dueMillis ? -1 : a.dueMillis > b.dueMillis ? 1 : 0;
+        }
+    };
+
+    private final Connector mConnector;
+    private final int mMaxInFlight;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mAttemptTimeoutMillis;
+    private final long mGiveUpMillis;
+    private final Random mRandom;
+    private final HashMap<String, Device> mDevices = new HashMap<String, Device>();
+    private final List<Device> mDue = new ArrayList<Device>();
+    private int mInFlight;
+
+    public ReconnectScheduler(Connector connector) {
+        this(connector, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_ATTEMPT_TIMEOUT_MILLIS, DEFAULT_GIVE_UP_MILLIS, new Random());
+    }
+
+    public ReconnectScheduler(Connector connector, int maxInFlight, long baseDelayMillis,
+                              long maxDelayMillis, long attemptTimeoutMillis, long giveUpMillis,
+                              Random random) {
+        mConnector = connector;
+        mMaxInFlight = maxInFlight;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mAttemptTimeoutMillis = attemptTimeoutMillis;
+        mGiveUpMillis = giveUpMillis;
+        mRandom = random;
+    }
+
+    // An attempt was started outside the scheduler, e.g. by the user; timed like our own.
+    public synchronized void onAttemptStarted(String address, int dataType, long now) {
+        Device device = device(address);
+        device.dataType = dataType;
+        device.released = false;
+        if (!device.inFlight()) {
+            start(device, now);
+        }
+    }
+
+    public synchronized void onConnected(String address, int dataType, long now) {
+        Device device = device(address);
+        if (device.inFlight()) {
+            device.connectLatency.record((now - device.attemptStartedMillis) * 1000000L);
+            device.successes++;
+            finish(device);
+        }
+        if (device.disconnectedMillis >= 0) {
+            long gap = now - device.disconnectedMillis;
+            device.typicalGapMillis = device.typicalGapMillis < 0 ? gap
+                    : device.typicalGapMillis + GAP_EWMA_ALPHA * (gap - device.typicalGapMillis);
+            device.disconnectedMillis = -1;
+        }
+        device.dataType = dataType;
+        device.connected = true;
+        device.wanted = false;
+        device.released = false;
+        device.failures = 0;
+        device.lastSeenMillis = now;
+    }
+
+    // An open channel went down.  Schedules the first retry unless the channel was released.
+    public synchronized void onDisconnected(String address, int dataType, long now) {
+        Device device = device(address);
+        device.dataType = dataType;
+        device.connected = false;
+        device.lastSeenMillis = now;
+        if (device.released) {
+            device.released = false;
+            return;
+        }
+        device.disconnectedMillis = now;
+        device.wanted = true;
+        device.wantedSinceMillis = now;
+        device.failures = 0;
+        long first = device.typicalGapMillis < 0 ? mBaseDelayMillis
+                : Math.min(mMaxDelayMillis, Math.max(mBaseDelayMillis,
+                        (long) (device.typicalGapMillis / 2)));
+        device.dueMillis = now + jitter(first);
+    }
+
+    // An attempt ended without a channel.
+    public synchronized void onConnectFailed(String address, long now) {
+        Device device = mDevices.get(address);
+        if (device == null || !device.inFlight()) {
+            return;
+        }
+        finish(device);
+        retryLater(device, now);
+    }
+
+    // Connects to the device as soon as an attempt slot is free, e.g. after a restart.
+    public synchronized void reconnect(String address, int dataType, long now) {
+        Device device = device(address);
+        device.dataType = dataType;
+        device.wanted = true;
+        device.wantedSinceMillis = now;
+        device.released = false;
+        device.dueMillis = now;
+    }
+
+    // The user closed the channel or the agent released the association: stop retrying until
+    // the device connects again.
+    public synchronized void release(String address) {
+        Device device = device(address);
+        device.wanted = false;
+        device.released = true;
+    }
+
+    // The agent associated again on a channel it had released, so losing that channel is a
+    // dropout again.
+    public synchronized void onAssociated(String address) {
+        Device device = mDevices.get(address);
+        if (device != null && device.connected) {
+            device.released = false;
+        }
+    }
+
+    // Times out stale attempts and starts those that are due, up to the in-flight limit.
+    // Returns when to poll next, or -1 if nothing is pending.
+    public synchronized long poll(long now) {
+        long next = Long.MAX_VALUE;
+        mDue.clear();
+        for (Device device : mDevices.values()) {
+            if (device.inFlight()) {
+                long deadline = device.attemptStartedMillis + mAttemptTimeoutMillis;
+                if (deadline > now) {
+                    next = Math.min(next, deadline);
+                    continue;
+                }
+                finish(device);
+                retryLater(device, now);
+            }
+            if (device.wanted && !device.connected) {
+                if (device.dueMillis <= now) {
+                    mDue.add(device);
+                } else {
+                    next = Math.min(next, device.dueMillis);
+                }
+            }
+        }
+        Collections.sort(mDue, BY_DUE);
+        for (Device device : mDue) {
+            if (mInFlight >= mMaxInFlight) {
+                // Waits for a slot; the attempt in flight ends by its deadline at the latest.
+                break;
+            }
+            start(device, now);
+            if (mConnector.connect(device.address, device.dataType)) {
+                next = Math.min(next, now + mAttemptTimeoutMillis);
+            } else {
+                finish(device);
+                retryLater(device, now);
+                next = Math.min(next, device.dueMillis);
+            }
+        }
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    public synchronized void dump(PrintWriter pw, long now) {
+        pw.println("Reconnects: " + mInFlight + "/" + mMaxInFlight + " in flight");
+        for (Device device : mDevices.values()) {
+            pw.println(String.format("  %s %s attempts=%d ok=%d failures=%d seen=%s gap=%s"
+                    + " connect p50=%dus p99=%dus%s",
+                    device.address, device.connected ? "connected" : "disconnected",
+                    device.attempts, device.successes, device.failures,
+                    device.lastSeenMillis < 0 ? "never" : (now - device.lastSeenMillis) + "ms ago",
+                    device.typicalGapMillis < 0 ? "?" : (long) device.typicalGapMillis + "ms",
+                    device.connectLatency.percentileMicros(50),
+                    device.connectLatency.percentileMicros(99),
+                    device.wanted && !device.inFlight()
+                            ? " next in " + Math.max(0, device.dueMillis - now) + "ms" : ""));
+        }
+    }
+
+    private Device device(String address) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address);
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    private void start(Device device, long now) {
+        device.attemptStartedMillis = now;
+        device.attempts++;
+        mInFlight++;
+    }
+
+    private void finish(Device device) {
+        device.attemptStartedMillis = -1;
+        mInFlight--;
+    }
+
+    private void retryLater(Device device, long now) {
+        device.failures++;
+        if (device.wanted && now - device.wantedSinceMillis >= mGiveUpMillis) {
+            device.wanted = false;
+        }
+        if (device.wanted) {
+            long delay = mBaseDelayMillis << Math.min(device.failures, 20);
+            device.dueMillis = now + jitter(Math.min(delay, mMaxDelayMillis));
+        }
+    }
+
+    // Somewhere between half the delay and all of it, so devices that dropped together do not
+    // retry in lockstep.
+    private long jitter(long delay) {
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2));
+    }
+}
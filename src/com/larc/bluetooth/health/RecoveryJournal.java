@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the service needs to pick up where it left off after being killed:
+ * the registered sink data types, the devices that had an open channel, and
+ * how far into the {@link ObservationLog} every reading is known to have
+ * reached a client.
+ *
+ * Each change is appended as a small fixed-size record, so keeping the
+ * journal current costs one short write per event. Opening the journal
+ * replays it and rewrites it as a compact snapshot of the resulting state.
+ */
+public class RecoveryJournal {
+    private static final byte REGISTERED = 1;
+    private static final byte UNREGISTERED = 2;
+    private static final byte CHANNEL_OPEN = 3;
+    private static final byte CHANNEL_CLOSED = 4;
+    private static final byte WATERMARK = 5;
+
+    // Type byte, then data type / device / sequence, then data type and channel id.
+    private static final int RECORD_SIZE = 1 + 8 + 4 + 4;
+    // Rewrite the journal as a snapshot once it grows past this.
+    private static final long COMPACT_BYTES = 64 * 1024;
+
+    private final File mFile;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel mChannel;
+
+    // Replayed state.
+    private final Set<Integer> mDataTypes = new LinkedHashSet<Integer>();
+    private final Map<Long, int[]> mChannels = new HashMap<Long, int[]>();
+    private long mWatermark;
+
+    public RecoveryJournal(File file) throws IOException {
+        mFile = file;
+        if (file.exists()) {
+            replay();
+        }
+        compact();
+    }
+
+    // Data types that had a registered sink.
+    public synchronized int[] dataTypes() {
+        int[] dataTypes = new int[mDataTypes.size()];
+        int i = 0;
+        for (int dataType : mDataTypes) {
+            dataTypes[i++] = dataType;
+        }
+        return dataTypes;
+    }
+
+    // Devices that had an open channel, as device key to { data type, channel id }.
+    public synchronized Map<Long, int[]> channels() {
+        return new HashMap<Long, int[]>(mChannels);
+    }
+
+    // Every observation below this sequence is known to have been published.
+    public synchronized long watermark() {
+        return mWatermark;
+    }
+
+    public synchronized void registered(int dataType) throws IOException {
+        if (mDataTypes.add(dataType)) {
+            append(REGISTERED, dataType, 0, 0);
+        }
+    }
+
+    public synchronized void unregistered(int dataType) throws IOException {
+        if (mDataTypes.remove(dataType)) {
+            append(UNREGISTERED, dataType, 0, 0);
+        }
+    }
+
+    public synchronized void channelOpened(long device, int dataType, int channelId)
+            throws IOException {
+        mChannels.put(device, new int[] { dataType, channelId });
+        append(CHANNEL_OPEN, device, dataType, channelId);
+    }
+
+    public synchronized void channelClosed(long device) throws IOException {
+        if (mChannels.remove(device) != null) {
+            append(CHANNEL_CLOSED, device, 0, 0);
+        }
+    }
+
+    public synchronized void advanceWatermark(long sequence) throws IOException {
+        if (sequence > mWatermark) {
+            mWatermark = sequence;
+            append(WATERMARK, sequence, 0, 0);
+        }
+    }
+
+    // Starts the watermark over, for an ObservationLog that was cleared.
+    public synchronized void resetWatermark() throws IOException {
+        if (mWatermark != 0) {
+            mWatermark = 0;
+            append(WATERMARK, 0, 0, 0);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void append(byte type, long key, int dataType, int channelId) throws IOException {
+        if (mChannel.size() >= COMPACT_BYTES) {
+            compact();
+        }
+        write(mChannel, type, key, dataType, channelId);
+    }
+
+    private void write(FileChannel channel, byte type, long key, int dataType, int channelId)
+            throws IOException {
+        mRecord.clear();
+        mRecord.put(type).putLong(key).putInt(dataType).putInt(channelId).flip();
+        while (mRecord.hasRemaining()) {
+            channel.write(mRecord);
+        }
+    }
+
+    private void replay() throws IOException {
+        FileChannel channel = new RandomAccessFile(mFile, "r").getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 1 << 20));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading.
+            }
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                byte type = buffer.get();
+                long key = buffer.getLong();
+                int dataType = buffer.getInt();
+                int channelId = buffer.getInt();
+                switch (type) {
+                    case REGISTERED:
+                        mDataTypes.add((int) key);
+                        break;
+                    case UNREGISTERED:
+                        mDataTypes.remove((int) key);
+                        break;
+                    case CHANNEL_OPEN:
+                        mChannels.put(key, new int[] { dataType, channelId });
+                        break;
+                    case CHANNEL_CLOSED:
+                        mChannels.remove(key);
+                        break;
+                    case WATERMARK:
+                        mWatermark = key;
+                        break;
+                    default:
+                        // A torn or unknown record; nothing after it can be trusted.
+                        return;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Writes the current state to a new file and swaps it in.
+    private void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            for (int dataType : mDataTypes) {
+                write(channel, REGISTERED, dataType, 0, 0);
+            }
+            for (Map.Entry<Long, int[]> entry : mChannels.entrySet()) {
+                write(channel, CHANNEL_OPEN, entry.getKey(), entry.getValue()[0],
+                        entry.getValue()[1]);
+            }
+            write(channel, WATERMARK, mWatermark, 0, 0);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (mChannel != null) {
+            mChannel.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        mChannel.position(mChannel.size());
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * Turns the fixed scan reports of one kind of agent into readings. Each
+ * {@link Specialization} holds the decoder for its devices, and every
+ * {@link ManagerSession} is given the decoder of its channel's sink.
+ *
+ * Decoders are stateless and shared by all sessions; decoding does not
+ * allocate.
+ */
+public abstract class ReportDecoder {
+    // Offsets in a PRST APDU carrying a fixed scan event report.
+    static final int SCAN_REPORT_COUNT = 26;
+    static final int SCAN_REPORT_ENTRIES = 30;
+    // Offsets in a PRST APDU carrying a configuration report.
+    static final int CONFIG_OBJECT_COUNT = 24;
+    static final int CONFIG_OBJECTS = 28;
+
+    // Attributes of a configuration report object.
+    static final int MDC_ATTR_ID_TYPE = 0x092F;
+    static final int MDC_ATTR_ATTRIBUTE_VAL_MAP = 0x0A55;
+
+    // Every metric the decoder reports, so owners can set up storage for them up front.
+    public final int[] metrics;
+
+    protected ReportDecoder(int[] metrics) {
+        this.metrics = metrics;
+    }
+
+    // Whether reports of an agent that associated with {@code configId} can be decoded without
+    // asking the agent for its configuration.
+    abstract boolean understands(int configId);
+
+    // Whether reports described by the configuration report in {@code apdu} can be decoded.
+    abstract boolean accepts(byte[] apdu, int offset, int length);
+
+    // Hands every reading in the report to the session's listener, or returns false and reports
+    // nothing if the report is malformed.
+    abstract boolean decode(ManagerSession session, byte[] apdu, int offset, int length,
+                            long timestampMillis);
+
+    /**
+     * The HBF-206IT report: systolic and diastolic pressure as little endian
+     * integers at fixed offsets, whatever configuration the agent announced.
+     */
+    public static class Hbf206it extends ReportDecoder {
+        private static final int SYS_OFFSET = 45;
+        private static final int DIA_OFFSET = 47;
+
+        public Hbf206it() {
+            super(new int[] {
+                    Nomenclature.MDC_PRESS_BLD_NONINV_SYS, Nomenclature.MDC_PRESS_BLD_NONINV_DIA });
+        }
+
+        @Override
+        boolean understands(int configId) {
+            return true;
+        }
+
+        @Override
+        boolean accepts(byte[] apdu, int offset, int length) {
+            return true;
+        }
+
+        @Override
+        boolean decode(ManagerSession session, byte[] apdu, int offset, int length,
+                       long timestampMillis) {
+            if (length < DIA_OFFSET + 2) {
+                return false;
+            }
+            session.observe(Nomenclature.MDC_PRESS_BLD_NONINV_SYS, timestampMillis,
+                    s16le(apdu, offset + SYS_OFFSET));
+            session.observe(Nomenclature.MDC_PRESS_BLD_NONINV_DIA, timestampMillis,
+                    s16le(apdu, offset + DIA_OFFSET));
+            return true;
+        }
+
+        private static short s16le(byte[] b, int i) {
+            return (short) ((b[i] & 0xFF) | (b[i + 1] << 8));
+        }
+    }
+
+    /**
+     * A standard configuration of IEEE 11073-20601: the report lists
+     * (object handle, length, value) entries, and the configuration fixes which
+     * metric each handle carries and how its value is encoded. A value of one
+     * metric is a plain SFLOAT or FLOAT; a value of several is a compound one,
+     * with its own count and length in front. Entries of other handles are
+     * skipped, and special values (NaN, NRes, infinities) are not reported.
+     *
+     * An agent with an extended configuration is accepted if its configuration
+     * report has every handle, with the metric's type and a value map that puts
+     * a value of the expected size first.
+     */
+    public static class ScanFixed extends ReportDecoder {
+        // Value encodings, by size.
+        public static final int SFLOAT = 2;
+        public static final int FLOAT = 4;
+
+        private final int mConfigId;
+        private final int[] mHandles;
+        private final int[][] mMetrics;
+        private final int[] mEncodings;
+
+        // Handle {@code handles[i]} carries the metrics {@code metrics[i]}, each encoded as
+        // {@code encodings[i]}.
+        public ScanFixed(int configId, int[] handles, int[][] metrics, int[] encodings) {
+            super(flatten(metrics));
+            mConfigId = configId;
+            mHandles = handles;
+            mMetrics = metrics;
+            mEncodings = encodings;
+        }
+
+        @Override
+        boolean understands(int configId) {
+            return configId == mConfigId;
+        }
+
+        @Override
+        boolean accepts(byte[] apdu, int offset, int length) {
+            if (length < CONFIG_OBJECTS) {
+                return false;
+            }
+            int count = u16(apdu, offset + CONFIG_OBJECT_COUNT);
+            int end = offset + length;
+            int p = offset + CONFIG_OBJECTS;
+            long seen = 0;
+            for (int n = 0; n < count; n++) {
+                // Object class, handle, attribute count and attribute list length.
+                if (end - p < 8) {
+                    return false;
+                }
+                int handle = u16(apdu, p + 2);
+                int attributes = u16(apdu, p + 4);
+                int size = u16(apdu, p + 6);
+                p += 8;
+                if (end - p < size) {
+                    return false;
+                }
+                int i = indexOf(handle);
+                if (i >= 0) {
+                    if (!matches(i, apdu, p, attributes, p + size)) {
+                        return false;
+                    }
+                    seen |= 1L << i;
+                }
+                p += size;
+            }
+            return seen == (1L << mHandles.length) - 1;
+        }
+
+        // Whether the attributes of the object with handle {@code mHandles[i]} match it.
+        private boolean matches(int i, byte[] apdu, int p, int attributes, int end) {
+            int type = -1;
+            int firstValueSize = -1;
+            for (int n = 0; n < attributes; n++) {
+                if (end - p < 4) {
+                    return false;
+                }
+                int id = u16(apdu, p);
+                int size = u16(apdu, p + 2);
+                p += 4;
+                if (end - p < size) {
+                    return false;
+                }
+                if (id == MDC_ATTR_ID_TYPE && size >= 4) {
+                    // Partition, then code.
+                    type = u16(apdu, p + 2);
+                } else if (id == MDC_ATTR_ATTRIBUTE_VAL_MAP && size >= 8) {
+                    // Count and length, then (attribute id, size) per entry.
+                    firstValueSize = u16(apdu, p + 6);
+                }
+                p += size;
+            }
+            int[] metrics = mMetrics[i];
+            int valueSize = metrics.length * mEncodings[i] + (metrics.length > 1 ? 4 : 0);
+            // Compound values have a type of their own, which this decoder does not keep.
+            return (metrics.length > 1 || type == metrics[0]) && firstValueSize == valueSize;
+        }
+
+        @Override
+        boolean decode(ManagerSession session, byte[] apdu, int offset, int length,
+                       long timestampMillis) {
+            // Check the whole report first so a malformed one reports nothing.
+            return walk(null, apdu, offset, length, timestampMillis)
+                    && walk(session, apdu, offset, length, timestampMillis);
+        }
+
+        private boolean walk(ManagerSession session, byte[] apdu, int offset, int length,
+                             long timestampMillis) {
+            if (length < SCAN_REPORT_ENTRIES) {
+                return false;
+            }
+            int count = u16(apdu, offset + SCAN_REPORT_COUNT);
+            int end = offset + length;
+            int p = offset + SCAN_REPORT_ENTRIES;
+            for (int n = 0; n < count; n++) {
+                if (end - p < 4) {
+                    return false;
+                }
+                int handle = u16(apdu, p);
+                int size = u16(apdu, p + 2);
+                p += 4;
+                if (end - p < size) {
+                    return false;
+                }
+                int i = indexOf(handle);
+                if (i >= 0 && !values(session, i, apdu, p, size, timestampMillis)) {
+                    return false;
+                }
+                p += size;
+            }
+            return true;
+        }
+
+        private boolean values(ManagerSession session, int i, byte[] apdu, int p, int size,
+                               long timestampMillis) {
+            int[] metrics = mMetrics[i];
+            int encoding = mEncodings[i];
+            if (metrics.length > 1) {
+                // Compound value: count and length, then the values.
+                if (size < 4 || u16(apdu, p) != metrics.length
+                        || u16(apdu, p + 2) != metrics.length * encoding) {
+                    return false;
+                }
+                p += 4;
+                size -= 4;
+            }
+            if (size < metrics.length * encoding) {
+                return false;
+            }
+            if (session == null) {
+                return true;
+            }
+            for (int metric : metrics) {
+                float value = encoding == SFLOAT ? sfloat(u16(apdu, p)) : float32(u32(apdu, p));
+                if (!Float.isNaN(value) && !Float.isInfinite(value)) {
+                    session.observe(metric, timestampMillis, value);
+                }
+                p += encoding;
+            }
+            return true;
+        }
+
+        private int indexOf(int handle) {
+            for (int i = 0; i < mHandles.length; i++) {
+                if (mHandles[i] == handle) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int[] flatten(int[][] metrics) {
+            int n = 0;
+            for (int[] m : metrics) {
+                n += m.length;
+            }
+            int[] all = new int[n];
+            n = 0;
+            for (int[] m : metrics) {
+                System.arraycopy(m, 0, all, n, m.length);
+                n += m.length;
+            }
+            return all;
+        }
+    }
+
+    // 16 bit medical float: 4 bit exponent and 12 bit mantissa, both signed.
+    static float sfloat(int bits) {
+        int mantissa = bits & 0x0FFF;
+        int exponent = bits >> 12;
+        if (exponent == 0 && mantissa >= 0x07FE && mantissa <= 0x0802) {
+            return mantissa == 0x07FE ? Float.POSITIVE_INFINITY
+                    : mantissa == 0x0802 ? Float.NEGATIVE_INFINITY : Float.NaN;
+        }
+        if (mantissa >= 0x0800) {
+            mantissa -= 0x1000;
+        }
+        if (exponent >= 0x8) {
+            exponent -= 0x10;
+        }
+        return scale(mantissa, exponent);
+    }
+
+    // 32 bit medical float: 8 bit exponent and 24 bit mantissa, both signed.
+    static float float32(long bits) {
+        int mantissa = (int) (bits & 0xFFFFFF);
+        int exponent = (byte) (bits >> 24);
+        if (exponent == 0 && mantissa >= 0x7FFFFE && mantissa <= 0x800002) {
+            return mantissa == 0x7FFFFE ? Float.POSITIVE_INFINITY
+                    : mantissa == 0x800002 ? Float.NEGATIVE_INFINITY : Float.NaN;
+        }
+        if (mantissa >= 0x800000) {
+            mantissa -= 0x1000000;
+        }
+        return scale(mantissa, exponent);
+    }
+
+    // Dividing for negative exponents keeps values like 36.6 exact to the float.
+    private static float scale(int mantissa, int exponent) {
+        return exponent < 0 ? (float) (mantissa / Math.pow(10, -exponent))
+                : (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    static int u16(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+
+    static long u32(byte[] b, int i) {
+        return ((long) u16(b, i) << 16) | u16(b, i + 2);
+    }
+}
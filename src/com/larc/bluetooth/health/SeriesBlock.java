@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec for a compressed block of readings of one device and metric. A block
+ * is a fixed header followed by two columns:
+ *
+ *   int payloadLength, long device, int metric, int count,
+ *   long minTime, long maxTime, float minValue, float maxValue,
+ *   byte valueEncoding, byte scaleDigits
+ *
+ * Timestamps are stored as zigzag varints: the first one relative to
+ * minTime, then the first delta, then deltas of deltas, which are zero for
+ * readings taken at a regular interval. Values that are exact decimals with
+ * up to three digits, which covers what the supported devices report, are
+ * scaled to integers and stored as zigzag varint deltas; any other values are
+ * stored as varints of the XOR of consecutive float bits.
+ *
+ * The header alone says whether a block can hold readings of interest, so
+ * scans skip blocks without reading their payload. An instance holds the
+ * header last read or written and is reused from block to block.
+ */
+public final class SeriesBlock {
+    public static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 8 + 8 + 4 + 4 + 1 + 1;
+    public static final int MAX_COUNT = 1024;
+
+    public static final byte VALUES_DELTA = 0;
+    public static final byte VALUES_XOR = 1;
+
+    private static final int MAX_SCALE_DIGITS = 3;
+    private static final int[] SCALES = { 1, 10, 100, 1000 };
+
+    public int payloadLength;
+    public long device;
+    public int metric;
+    public int count;
+    public long minTime;
+    public long maxTime;
+    public float minValue;
+    public float maxValue;
+    public byte valueEncoding;
+    public byte scaleDigits;
+
+    // Largest encoding of a block of {@code count} readings, header included.
+    public static int maxEncodedSize(int count) {
+        return HEADER_SIZE + count * (10 + 5);
+    }
+
+    // Encodes {@code count} readings from {@code offset}, in time order, into {@code out} and
+    // returns the length of the block.
+    public int encode(long device, int metric, long[] timestamps, float[] values, int offset,
+                      int count, byte[] out) {
+        if (count <= 0 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("Block of " + count + " readings");
+        }
+        this.device = device;
+        this.metric = metric;
+        this.count = count;
+        minTime = Long.MAX_VALUE;
+        maxTime = Long.MIN_VALUE;
+        minValue = Float.POSITIVE_INFINITY;
+        maxValue = Float.NEGATIVE_INFINITY;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            minTime = Math.min(minTime, timestamps[i]);
+            maxTime = Math.max(maxTime, timestamps[i]);
+            minValue = Math.min(minValue, values[i]);
+            maxValue = Math.max(maxValue, values[i]);
+        }
+        int scale = scaleDigits(values, offset, end);
+        valueEncoding = scale < 0 ? VALUES_XOR : VALUES_DELTA;
+        scaleDigits = (byte) Math.max(scale, 0);
+
+        int p = HEADER_SIZE;
+        p = putVarint(out, p, zigzag(timestamps[offset] - minTime));
+        long previousDelta = 0;
+        for (int i = offset + 1; i < end; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            p = putVarint(out, p, zigzag(delta - previousDelta));
+            previousDelta = delta;
+        }
+        if (valueEncoding == VALUES_DELTA) {
+            int factor = SCALES[scaleDigits];
+            long previous = 0;
+            for (int i = offset; i < end; i++) {
+                long scaled = Math.round((double) values[i] * factor);
+                p = putVarint(out, p, zigzag(scaled - previous));
+                previous = scaled;
+            }
+        } else {
+            int previous = 0;
+            for (int i = offset; i < end; i++) {
+                int bits = Float.floatToRawIntBits(values[i]);
+                p = putVarint(out, p, (bits ^ previous) & 0xFFFFFFFFL);
+                previous = bits;
+            }
+        }
+        payloadLength = p - HEADER_SIZE;
+        ByteBuffer.wrap(out, 0, HEADER_SIZE).putInt(payloadLength).putLong(device).putInt(metric)
+                .putInt(count).putLong(minTime).putLong(maxTime).putFloat(minValue)
+                .putFloat(maxValue).put(valueEncoding).put(scaleDigits);
+        return p;
+    }
+
+    // Reads a header from the buffer's position.
+    public void readHeader(ByteBuffer header) {
+        payloadLength = header.getInt();
+        device = header.getLong();
+        metric = header.getInt();
+        count = header.getInt();
+        minTime = header.getLong();
+        maxTime = header.getLong();
+        minValue = header.getFloat();
+        maxValue = header.getFloat();
+        valueEncoding = header.get();
+        scaleDigits = header.get();
+    }
+
+    // Whether the header is plausible, as opposed to torn or overwritten.
+    public boolean isValid() {
+        return count > 0 && count <= MAX_COUNT && payloadLength > 0
+                && payloadLength <= maxEncodedSize(count) - HEADER_SIZE && minTime <= maxTime
+                && (valueEncoding == VALUES_DELTA || valueEncoding == VALUES_XOR)
+                && scaleDigits >= 0 && scaleDigits <= MAX_SCALE_DIGITS;
+    }
+
+    // Decodes the payload of the block whose header was read last.  Each column is decoded in
+    // its own loop into the caller's arrays, which must hold {@link #count} readings.
+    public void decode(byte[] payload, int offset, long[] timestamps, float[] values) {
+        int[] p = { offset };
+        long t = minTime + unzigzag(getVarint(payload, p));
+        timestamps[0] = t;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            delta += unzigzag(getVarint(payload, p));
+            t += delta;
+            timestamps[i] = t;
+        }
+        if (valueEncoding == VALUES_DELTA) {
+            float factor = SCALES[scaleDigits];
+            long scaled = 0;
+            for (int i = 0; i < count; i++) {
+                scaled += unzigzag(getVarint(payload, p));
+                values[i] = (float) (scaled / (double) factor);
+            }
+        } else {
+            int bits = 0;
+            for (int i = 0; i < count; i++) {
+                bits ^= (int) getVarint(payload, p);
+                values[i] = Float.intBitsToFloat(bits);
+            }
+        }
+    }
+
+    // Fewest decimal digits that represent every value exactly, or -1 if there are none.
+    private static int scaleDigits(float[] values, int from, int to) {
+        for (int digits = 0; digits <= MAX_SCALE_DIGITS; digits++) {
+            int factor = SCALES[digits];
+            boolean exact = true;
+            for (int i = from; i < to && exact; i++) {
+                double scaled = Math.rint((double) values[i] * factor);
+                exact = Math.abs(scaled) < Integer.MAX_VALUE
+                        && (float) (scaled / factor) == values[i];
+            }
+            if (exact) {
+                return digits;
+            }
+        }
+        return -1;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putVarint(byte[] out, int p, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[p++] = (byte) value;
+        return p;
+    }
+
+    private static long getVarint(byte[] in, int[] p) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[p[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of readings in a memory-mapped file, written by the service and read
+ * by clients that map the same file, so readings reach a client without a
+ * binder transaction each. The Messenger only carries a wake-up once a
+ * client has caught up and asked for one.
+ *
+ * Layout: a 64-byte header (magic, version, capacity, slot size, long head,
+ * int reader-waiting flag), then capacity slots of
+ *
+ *   long stamp, long timestampMillis, long device, int metric, float value
+ *
+ * Each slot is a seqlock: the writer sets the stamp of sequence s to 2s + 1,
+ * writes the reading, sets the stamp to 2s + 2 and only then advances the
+ * head. A reader accepts slot s only if it sees stamp 2s + 2 both before and
+ * after copying the reading, so it never returns a reading the writer was
+ * overwriting. A reader that falls more than a ring behind counts the
+ * readings it missed and skips ahead.
+ *
+ * Plain buffer accesses are ordered by a volatile store on the writing side
+ * and a volatile load on the reading side around each stamp access; both
+ * compile to full barriers on the runtimes this runs on.
+ */
+public class SharedMeasurementRing {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int MAGIC = 0x48445052;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int HEAD_OFFSET = 16;
+    private static final int WAITING_OFFSET = 24;
+
+    private static volatile int sFence;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mMask;
+    private long mHead;
+
+    // Opens or creates the ring.  An existing ring of the same capacity keeps its sequence
+    // numbers, so readers that survived a service restart carry on.
+    public SharedMeasurementRing(File file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mBuffer = map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE, true);
+        mMask = capacity - 1;
+        if (mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION
+                && mBuffer.getInt(CAPACITY_OFFSET) == capacity
+                && mBuffer.getInt(SLOT_SIZE_OFFSET) == SLOT_SIZE) {
+            mHead = mBuffer.getLong(HEAD_OFFSET);
+        } else {
+            for (int i = 0; i < mBuffer.capacity(); i += 8) {
+                mBuffer.putLong(i, 0);
+            }
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(CAPACITY_OFFSET, capacity);
+            mBuffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+            storeFence();
+            mBuffer.putInt(0, MAGIC);
+        }
+    }
+
+    // Writes a reading and returns its sequence number.
+    public synchronized long append(long timestampMillis, long device, int metric, float value) {
+        long seq = mHead;
+        int slot = HEADER_SIZE + (int) (seq & mMask) * SLOT_SIZE;
+        mBuffer.putLong(slot, 2 * seq + 1);
+        storeFence();
+        mBuffer.putLong(slot + 8, timestampMillis);
+        mBuffer.putLong(slot + 16, device);
+        mBuffer.putInt(slot + 24, metric);
+        mBuffer.putFloat(slot + 28, value);
+        storeFence();
+        mBuffer.putLong(slot, 2 * seq + 2);
+        storeFence();
+        mHead = seq + 1;
+        mBuffer.putLong(HEAD_OFFSET, mHead);
+        storeFence();
+        return seq;
+    }
+
+    // Whether a reader asked to be woken up since the last call.  The request is consumed, so
+    // the caller should send exactly one wake-up when this returns true.  Synchronized like
+    // append(), so two channels cannot both take the same request.
+    public synchronized boolean takeWakeupRequest() {
+        loadFence();
+        if (mBuffer.getInt(WAITING_OFFSET) == 0) {
+            return false;
+        }
+        mBuffer.putInt(WAITING_OFFSET, 0);
+        storeFence();
+        return true;
+    }
+
+    // Sequence number the next reading will get.
+    public synchronized long head() {
+        return mHead;
+    }
+
+    private static void storeFence() {
+        sFence = 0;
+    }
+
+    private static int loadFence() {
+        return sFence;
+    }
+
+    private static MappedByteBuffer map(File file, long size, boolean create) throws IOException {
+        if (!create && file.length() < size) {
+            throw new IOException("Ring " + file + " is missing or short");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A client's view of the ring. Not thread-safe; each reading thread needs
+     * its own.
+     */
+    public static class Reader {
+        private MappedByteBuffer mBuffer;
+        private final int mMask;
+        private final int mCapacity;
+        private long mNext;
+        private long mLost;
+
+        // Maps an existing ring and starts reading at its head.
+        public Reader(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            int capacity;
+            try {
+                if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+                    throw new IOException("Not a measurement ring: " + file);
+                }
+                raf.seek(CAPACITY_OFFSET);
+                capacity = raf.readInt();
+            } finally {
+                raf.close();
+            }
+            mBuffer = map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE, false);
+            mCapacity = capacity;
+            mMask = capacity - 1;
+            mNext = head();
+        }
+
+        // Readings skipped because the writer lapped this reader.
+        public long getLost() {
+            return mLost;
+        }
+
+        // Copies up to {@code max} new readings into the arrays and returns how many.
+        public int read(long[] timestamps, long[] devices, int[] metrics, float[] values,
+                        int max) {
+            long head = head();
+            if (head < mNext) {
+                // The ring was created anew.
+                mNext = head;
+            }
+            if (head - mNext > mCapacity) {
+                mLost += head - mCapacity - mNext;
+                mNext = head - mCapacity;
+            }
+            int n = 0;
+            while (n < max && mNext < head) {
+                long seq = mNext++;
+                int slot = HEADER_SIZE + (int) (seq & mMask) * SLOT_SIZE;
+                long stamp = mBuffer.getLong(slot);
+                loadFence();
+                timestamps[n] = mBuffer.getLong(slot + 8);
+                devices[n] = mBuffer.getLong(slot + 16);
+                metrics[n] = mBuffer.getInt(slot + 24);
+                values[n] = mBuffer.getFloat(slot + 28);
+                loadFence();
+                if (stamp == 2 * seq + 2 && mBuffer.getLong(slot) == stamp) {
+                    n++;
+                } else {
+                    // Overwritten while being read.
+                    mLost++;
+                }
+            }
+            return n;
+        }
+
+        // Asks the writer for a wake-up.  Returns true if readings arrived meanwhile, in which
+        // case the caller should read again rather than wait.
+        public boolean requestWakeup() {
+            mBuffer.putInt(WAITING_OFFSET, 1);
+            storeFence();
+            return head() > mNext;
+        }
+
+        // Drops the mapping; the reader must not be used afterwards.  There is no way to unmap
+        // a buffer explicitly, so the mapping goes once the buffer is collected.
+        public void close() {
+            mBuffer = null;
+        }
+
+        private long head() {
+            loadFence();
+            return mBuffer.getLong(HEAD_OFFSET);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * Rolling statistics over the readings of the last {@code windowMillis}
+ * milliseconds, bounded to {@code capacity} readings. Every update is O(1)
+ * amortized: mean and variance are maintained with Welford's recurrence (and
+ * its inverse on eviction), minimum and maximum with monotonic deques, and an
+ * exponentially weighted moving average is kept alongside.
+ *
+ * Not thread safe; each instance belongs to the thread feeding it.
+ */
+public class SlidingWindowStats {
+    private final long mWindowMillis;
+    private final float mAlpha;
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    // Window contents are sequences [mHead, mTail).
+    private long mHead;
+    private long mTail;
+
+    private double mMean;
+    private double mM2;
+    private double mEwma;
+
+    // Deques of sequences whose values are non-decreasing (min) and non-increasing (max).
+    private final long[] mMinDeque;
+    private final long[] mMaxDeque;
+    private long mMinHead, mMinTail;
+    private long mMaxHead, mMaxTail;
+
+    public SlidingWindowStats(int capacity, long windowMillis, float ewmaAlpha) {
+        if (capacity <= 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("capacity and window must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mWindowMillis = windowMillis;
+        mAlpha = ewmaAlpha;
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mValues = new float[size];
+        mMinDeque = new long[size];
+        mMaxDeque = new long[size];
+    }
+
+    // Adds a reading, first evicting whatever falls out of the window because of it.
+    public void add(long timestampMillis, float value) {
+        long horizon = timestampMillis - mWindowMillis;
+        while (mHead < mTail
+                && (mTail - mHead > mMask || mTimestamps[(int) mHead & mMask] <= horizon)) {
+            evictOldest();
+        }
+
+        long seq = mTail++;
+        int i = (int) seq & mMask;
+        mTimestamps[i] = timestampMillis;
+        mValues[i] = value;
+
+        long n = mTail - mHead;
+        double delta = value - mMean;
+        mMean += delta / n;
+        mM2 += delta * (value - mMean);
+        mEwma = seq == 0 ? value : mEwma + mAlpha * (value - mEwma);
+
+        while (mMinTail > mMinHead
+                && mValues[(int) mMinDeque[(int) (mMinTail - 1) & mMask] & mMask] >= value) {
+            mMinTail--;
+        }
+        mMinDeque[(int) mMinTail++ & mMask] = seq;
+        while (mMaxTail > mMaxHead
+                && mValues[(int) mMaxDeque[(int) (mMaxTail - 1) & mMask] & mMask] <= value) {
+            mMaxTail--;
+        }
+        mMaxDeque[(int) mMaxTail++ & mMask] = seq;
+    }
+
+    private void evictOldest() {
+        long seq = mHead++;
+        float value = mValues[(int) seq & mMask];
+        long n = mTail - mHead;
+        if (n == 0) {
+            mMean = 0;
+            mM2 = 0;
+        } else {
+            double delta = value - mMean;
+            mMean -= delta / n;
+            mM2 -= delta * (value - mMean);
+            if (mM2 < 0) {
+                mM2 = 0;
+            }
+        }
+        if (mMinTail > mMinHead && mMinDeque[(int) mMinHead & mMask] == seq) {
+            mMinHead++;
+        }
+        if (mMaxTail > mMaxHead && mMaxDeque[(int) mMaxHead & mMask] == seq) {
+            mMaxHead++;
+        }
+    }
+
+    public int count() {
+        return (int) (mTail - mHead);
+    }
+
+    public double mean() {
+        return mMean;
+    }
+
+    // Sample variance, or 0 with fewer than two readings.
+    public double variance() {
+        long n = mTail - mHead;
+        return n > 1 ? mM2 / (n - 1) : 0;
+    }
+
+    public float min() {
+        return mMinTail > mMinHead
+                ? mValues[(int) mMinDeque[(int) mMinHead & mMask] & mMask] : Float.NaN;
+    }
+
+    public float max() {
+        return mMaxTail > mMaxHead
+                ? mValues[(int) mMaxDeque[(int) mMaxHead & mMask] & mMask] : Float.NaN;
+    }
+
+    // Exponentially weighted moving average over every reading ever added, not just the window.
+    public double ewma() {
+        return mEwma;
+    }
+
+    public float oldestValue() {
+        return mValues[(int) mHead & mMask];
+    }
+
+    public long oldestTimestamp() {
+        return mTimestamps[(int) mHead & mMask];
+    }
+
+    public float latestValue() {
+        return mValues[(int) (mTail - 1) & mMask];
+    }
+
+    public long latestTimestamp() {
+        return mTimestamps[(int) (mTail - 1) & mMask];
+    }
+}
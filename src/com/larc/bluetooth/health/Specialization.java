@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+/**
+ * An IEEE 11073-104xx device specialization the service registers a sink
+ * for. The data type is the one passed to
+ * {@code BluetoothHealth.registerSinkAppConfiguration()}; the decoder turns
+ * the reports of its devices into readings.
+ *
+ * Only specializations with a decoder are supported. Others, such as body
+ * composition analyzers (0x1014), can still be registered by a client but
+ * their reports are confirmed without being decoded.
+ */
+public final class Specialization {
+    public static final Specialization BLOOD_PRESSURE =
+            new Specialization(0x1007, "blood pressure monitor", new ReportDecoder.Hbf206it());
+    // IEEE 11073-10408 standard configuration: body temperature as a FLOAT.
+    public static final Specialization THERMOMETER =
+            new Specialization(0x1008, "thermometer", new ReportDecoder.ScanFixed(0x0320,
+                    new int[] { 1 },
+                    new int[][] { { Nomenclature.MDC_TEMP_BODY } },
+                    new int[] { ReportDecoder.ScanFixed.FLOAT }));
+    // IEEE 11073-10415 standard configuration: body weight and BMI as FLOATs.
+    public static final Specialization WEIGHT_SCALE =
+            new Specialization(0x100F, "weight scale", new ReportDecoder.ScanFixed(0x05DC,
+                    new int[] { 1, 3 },
+                    new int[][] { { Nomenclature.MDC_MASS_BODY_ACTUAL },
+                            { Nomenclature.MDC_RATIO_MASS_BODY_LEN_SQ } },
+                    new int[] { ReportDecoder.ScanFixed.FLOAT, ReportDecoder.ScanFixed.FLOAT }));
+
+    // Every specialization a sink is registered for by default.  Body composition analyzers
+    // (0x1014) are left out until there is a decoder for them: a sink would accept their
+    // association and confirm their reports, but no reading would ever come of them.  A client
+    // can still register one with MSG_REG_HEALTH_APP.
+    public static final Specialization[] SUPPORTED = {
+            BLOOD_PRESSURE, THERMOMETER, WEIGHT_SCALE };
+
+    public final int dataType;
+    public final String name;
+    // Null if reports of this data type cannot be decoded.
+    public final ReportDecoder decoder;
+
+    private Specialization(int dataType, String name, ReportDecoder decoder) {
+        this.dataType = dataType;
+        this.name = name;
+        this.decoder = decoder;
+    }
+
+    // The supported specialization with this data type, or null.
+    public static Specialization forDataType(int dataType) {
+        for (Specialization specialization : SUPPORTED) {
+            if (specialization.dataType == dataType) {
+                return specialization;
+            }
+        }
+        return null;
+    }
+
+    // A specialization for a data type registered by a client but not in SUPPORTED.
+    public static Specialization custom(int dataType) {
+        return new Specialization(dataType, "device", null);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (0x%04X)", name, dataType);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Times the steps of a cold start from the moment the timer was created.
+ * Steps may run on any thread and overlap; each is recorded once, with when
+ * it started and ended, so the report shows both what took long and what ran
+ * in parallel.
+ */
+public class StartupTimer {
+    private final long mStartNanos = System.nanoTime();
+    private final ArrayList<String> mNames = new ArrayList<String>();
+    private final ArrayList<long[]> mSpans = new ArrayList<long[]>();
+
+    // Time to pass to end() when the step finishes.
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    // Records a step that started at {@code began}.  Only the first time a step ends counts.
+    public synchronized void end(String step, long began) {
+        if (!mNames.contains(step)) {
+            mNames.add(step);
+            mSpans.add(new long[] { began - mStartNanos, System.nanoTime() - mStartNanos });
+        }
+    }
+
+    // Records something that happened now.
+    public void mark(String step) {
+        end(step, System.nanoTime());
+    }
+
+    // Milliseconds from the start to the end of the step, or -1 if it has not ended.
+    public synchronized long elapsedMillis(String step) {
+        int i = mNames.indexOf(step);
+        return i < 0 ? -1 : mSpans.get(i)[1] / 1000000;
+    }
+
+    // One line, e.g. "storage 12ms@40ms, proxy 180ms@180ms": duration and end of every step.
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mNames.size(); i++) {
+            long[] span = mSpans.get(i);
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mNames.get(i)).append(' ').append((span[1] - span[0]) / 1000000)
+                    .append("ms@").append(span[1] / 1000000).append("ms");
+        }
+        return sb.toString();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Startup:");
+        for (int i = 0; i < mNames.size(); i++) {
+            long[] span = mSpans.get(i);
+            pw.println(String.format("  %-24s %6dms .. %6dms (%dms)", mNames.get(i),
+                    span[0] / 1000000, span[1] / 1000000, (span[1] - span[0]) / 1000000));
+        }
+    }
+}
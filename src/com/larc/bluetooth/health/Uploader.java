@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the readings of the {@link ObservationLog} to a backend in gzip
+ * compressed batches, in the binary format of {@link ObservationExporter},
+ * with several batches in flight.
+ *
+ * Every batch covers a fixed range of log sequence numbers and is named
+ * after it ("source/generation/from-to"), so a retried batch carries the same
+ * id and the backend can drop copies it already has. The ranges handed out
+ * and the end of the acknowledged prefix are saved in a cursor file before
+ * and after each batch, so after a restart exactly the unacknowledged ranges
+ * are sent again and nothing acknowledged is.
+ *
+ * The batch size doubles while batches are acknowledged well within the
+ * target latency and halves when they take longer.
+ *
+ * If the cursor cannot be saved, nothing new is handed out until it is; the
+ * save is retried with backoff and every failure is reported to the
+ * {@link Listener}.
+ */
+public class Uploader implements Runnable {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 3;
+    public static final int MIN_BATCH = 64;
+    public static final int MAX_BATCH = 8192;
+    public static final long TARGET_LATENCY_MILLIS = 2000;
+    public static final long IDLE_POLL_MILLIS = 60 * 1000;
+
+    private static final int CURSOR_VERSION = 1;
+    private static final long RETRY_BASE_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 5 * 60 * 1000;
+    // How long a stop waits for sends in flight before leaving them to finish on their own.
+    private static final long STOP_WAIT_MILLIS = 5000;
+
+    /**
+     * Delivers a batch. Returns the HTTP status; 2xx acknowledges the batch
+     * and 409 means the backend already has it.
+     */
+    public interface Transport {
+        int send(String batchId, byte[] gzippedBody) throws IOException;
+    }
+
+    /**
+     * Hears about cursor saves that failed, on the uploader's thread.
+     */
+    public interface Listener {
+        // The save failed {@code failures} times in a row; it is retried after {@code retryMillis}.
+        void onCursorError(IOException e, int failures, long retryMillis);
+    }
+
+    /**
+     * Posts batches to a URL, with the id in the X-Batch-Id header.
+     */
+    public static class HttpTransport implements Transport {
+        private final URL mUrl;
+
+        public HttpTransport(URL url) {
+            mUrl = url;
+        }
+
+        public int send(String batchId, byte[] gzippedBody) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            try {
+                connection.setConnectTimeout(15000);
+                connection.setReadTimeout(30000);
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setFixedLengthStreamingMode(gzippedBody.length);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setRequestProperty("X-Batch-Id", batchId);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(gzippedBody);
+                } finally {
+                    out.close();
+                }
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static final class Batch {
+        final long from;
+        final long to;
+        boolean sending;
+        boolean acked;
+        int failures;
+        long dueMillis;
+        // Outcome of the last send: how long it took, or why it failed.
+        long latencyMillis;
+        IOException error;
+
+        Batch(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // Queued by stop() to wake the uploader's thread.
+    private static final Batch STOP = new Batch(-1, -1);
+
+    private final ObservationLog mLog;
+    private final File mCursorFile;
+    private final Transport mTransport;
+    private final String mSource;
+    private final int mMaxInFlight;
+    private final Random mRandom = new Random();
+
+    // Batches handed out and not yet part of the acknowledged prefix, by first sequence.
+    private final TreeMap<Long, Batch> mBatches = new TreeMap<Long, Batch>();
+    // Batches whose send ended, for the running uploader thread; STOP wakes it to stop.
+    private BlockingQueue<Batch> mCompleted;
+    private long mGeneration;
+    private long mAcked;
+    private int mInFlight;
+    private int mBatchSize = MIN_BATCH * 8;
+    // The cursor changed since it was last saved; saved before anything else is handed out.
+    private boolean mCursorDirty;
+    private IOException mCursorError;
+    private volatile Listener mListener;
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    public Uploader(ObservationLog log, File cursorFile, Transport transport, String source,
+                    int maxInFlight) throws IOException {
+        mLog = log;
+        mCursorFile = cursorFile;
+        mTransport = transport;
+        mSource = source;
+        mMaxInFlight = maxInFlight;
+        if (cursorFile.exists()) {
+            loadCursor();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        mStopped = false;
+        mCompleted = new LinkedBlockingQueue<Batch>();
+        mThread = new Thread(this, "uploader");
+        mThread.start();
+    }
+
+    // Stops handing out batches and waits for the uploader's thread to end.  Nothing is
+    // interrupted: an interrupt during a read of the log would close the log's channel for
+    // everyone else.
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mStopped = true;
+            thread = mThread;
+            mThread = null;
+            if (thread != null) {
+                mCompleted.add(STOP);
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Every reading below this sequence was acknowledged by the backend.
+    public synchronized long getCursor() {
+        return mAcked;
+    }
+
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Upload: acked through " + mAcked + " (generation " + mGeneration + "), "
+                + mBatches.size() + " batches outstanding, " + mInFlight + "/" + mMaxInFlight
+                + " in flight, batch size " + mBatchSize);
+        if (mCursorDirty) {
+            pw.println("  cursor not saved: " + mCursorError);
+        }
+        for (Batch batch : mBatches.values()) {
+            if (batch.failures > 0) {
+                pw.println("  " + batchId(batch) + " failures=" + batch.failures + " "
+                        + batch.error);
+            }
+        }
+    }
+
+    // Starts over with a new generation for a log that was cleared.  Only valid once everything
+    // was acknowledged.
+    public synchronized void resetCursor() throws IOException {
+        if (!mBatches.isEmpty()) {
+            throw new IllegalStateException("Batches still outstanding");
+        }
+        mGeneration++;
+        mAcked = 0;
+        saveCursor();
+    }
+
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(mMaxInFlight);
+        BlockingQueue<Batch> completed;
+        synchronized (this) {
+            completed = mCompleted;
+            // Sends cut short by an earlier stop() are sent again.
+            mInFlight = 0;
+            for (Batch batch : mBatches.values()) {
+                batch.sending = false;
+            }
+        }
+        int failures = 0;
+        try {
+            while (!mStopped) {
+                long wait;
+                try {
+                    wait = submitDue(pool, completed);
+                    failures = 0;
+                } catch (IOException e) {
+                    // The cursor could not be saved.  Sends in flight still complete, and their
+                    // results are kept for the next save.
+                    failures++;
+                    wait = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(failures, 20));
+                    synchronized (this) {
+                        mCursorError = e;
+                    }
+                    Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onCursorError(e, failures, wait);
+                    }
+                }
+                Batch batch = completed.poll(wait, TimeUnit.MILLISECONDS);
+                if (batch != null && batch != STOP) {
+                    completed(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            // Sends in flight finish on their own; their results are dropped and sent again after
+            // a restart.
+            pool.shutdown();
+            try {
+                pool.awaitTermination(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Hands batches to the pool up to the in-flight limit, retries first.  Returns how long to
+    // wait for a result before looking again.  Takes the log's lock before ours, in the same
+    // order as compaction, which reads the cursor while it holds the log.
+    private long submitDue(Executor pool, BlockingQueue<Batch> completed) throws IOException {
+        synchronized (mLog) {
+            synchronized (this) {
+                if (mCursorDirty) {
+                    saveCursor();
+                }
+                long now = System.currentTimeMillis();
+                long wait = IDLE_POLL_MILLIS;
+                for (Batch batch : mBatches.values()) {
+                    if (mInFlight >= mMaxInFlight) {
+                        return wait;
+                    }
+                    if (batch.sending || batch.acked) {
+                        continue;
+                    }
+                    if (batch.dueMillis > now) {
+                        wait = Math.min(wait, batch.dueMillis - now);
+                        continue;
+                    }
+                    submit(pool, completed, batch);
+                }
+                while (mInFlight < mMaxInFlight) {
+                    long from = mBatches.isEmpty() ? mAcked : mBatches.lastEntry().getValue().to;
+                    long available = mLog.size() - from;
+                    if (available <= 0) {
+                        break;
+                    }
+                    Batch batch = new Batch(from, from + Math.min(available, mBatchSize));
+                    mBatches.put(batch.from, batch);
+                    // Saved before the first send, so a restart sends the same range under the
+                    // same id.
+                    saveCursor();
+                    submit(pool, completed, batch);
+                }
+                return wait;
+            }
+        }
+    }
+
+    // Sends the batch on the pool and queues it on {@code completed} however the send ends.
+    private void submit(Executor pool, final BlockingQueue<Batch> completed, final Batch batch) {
+        batch.sending = true;
+        mInFlight++;
+        final String id = batchId(batch);
+        pool.execute(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    int status = mTransport.send(id, encode(batch));
+                    if ((status < 200 || status >= 300) && status != 409) {
+                        throw new IOException("Batch " + id + ": HTTP " + status);
+                    }
+                    batch.error = null;
+                } catch (IOException e) {
+                    batch.error = e;
+                } catch (RuntimeException e) {
+                    // A failed batch like any other, retried with backoff.
+                    batch.error = new IOException("Batch " + id + " failed", e);
+                } finally {
+                    batch.latencyMillis = System.currentTimeMillis() - start;
+                    completed.add(batch);
+                }
+            }
+        });
+    }
+
+    // Takes in the outcome of a send.  If the cursor cannot be saved it stays dirty and the next
+    // submitDue() saves it before anything else.
+    private void completed(Batch batch) {
+        synchronized (this) {
+            mInFlight--;
+            batch.sending = false;
+            if (batch.error != null) {
+                batch.failures++;
+                long delay = Math.min(RETRY_MAX_MILLIS,
+                        RETRY_BASE_MILLIS << Math.min(batch.failures, 20));
+                batch.dueMillis = System.currentTimeMillis() + delay / 2
+                        + (long) (mRandom.nextDouble() * (delay - delay / 2));
+                mBatchSize = Math.max(MIN_BATCH, mBatchSize / 2);
+                return;
+            }
+            adapt(batch.latencyMillis);
+            batch.acked = true;
+            // Advance over the acknowledged prefix.
+            while (!mBatches.isEmpty() && mBatches.firstEntry().getValue().acked) {
+                mAcked = mBatches.pollFirstEntry().getValue().to;
+            }
+            try {
+                saveCursor();
+            } catch (IOException e) {
+                mCursorError = e;
+            }
+        }
+    }
+
+    private void adapt(long latencyMillis) {
+        if (latencyMillis < TARGET_LATENCY_MILLIS / 2) {
+            mBatchSize = Math.min(MAX_BATCH, mBatchSize * 2);
+        } else if (latencyMillis > TARGET_LATENCY_MILLIS) {
+            mBatchSize = Math.max(MIN_BATCH, mBatchSize / 2);
+        }
+    }
+
+    private String batchId(Batch batch) {
+        return mSource + "/" + mGeneration + "/" + batch.from + "-" + batch.to;
+    }
+
+    private byte[] encode(final Batch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                (int) (batch.to - batch.from) * 8 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        final ObservationExporter exporter = new ObservationExporter(Channels.newChannel(gzip),
+                ObservationExporter.FORMAT_BINARY, 16 * 1024);
+        mLog.scan(batch.from, new ObservationLog.Visitor() {
+            public boolean visit(long sequence, long timestampMillis, long device, int metric,
+                                 float value, int flags) {
+                return sequence < batch.to
+                        && exporter.visit(sequence, timestampMillis, device, metric, value,
+                                flags);
+            }
+        });
+        exporter.finish();
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private void loadCursor() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(mCursorFile));
+        try {
+            if (in.readInt() != CURSOR_VERSION) {
+                throw new IOException("Unknown upload cursor version");
+            }
+            mGeneration = in.readLong();
+            mAcked = in.readLong();
+            int batches = in.readInt();
+            for (int i = 0; i < batches; i++) {
+                Batch batch = new Batch(in.readLong(), in.readLong());
+                mBatches.put(batch.from, batch);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Marks the cursor dirty until it is written, so a failed save is retried before anything
+    // else is sent.
+    private void saveCursor() throws IOException {
+        mCursorDirty = true;
+        writeCursor();
+        mCursorDirty = false;
+        mCursorError = null;
+    }
+
+    private void writeCursor() throws IOException {
+        File tmp = new File(mCursorFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(file);
+        try {
+            out.writeInt(CURSOR_VERSION);
+            out.writeLong(mGeneration);
+            out.writeLong(mAcked);
+            out.writeInt(mBatches.size());
+            for (Map.Entry<Long, Batch> entry : mBatches.entrySet()) {
+                out.writeLong(entry.getValue().from);
+                out.writeLong(entry.getValue().to);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mCursorFile)) {
+            throw new IOException("Cannot replace " + mCursorFile);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory windows of recent readings, one ring per device and metric. Rings
+ * are created on first use and live as long as the store; looking one up does
+ * not allocate once it exists.
+ *
+ * Device keys are the Bluetooth addresses; metric keys are
+ * {@link Nomenclature} codes.
+ */
+public class VitalsStore {
+    private final int mCapacity;
+    private final ConcurrentHashMap<String, DeviceSeries> mDevices =
+            new ConcurrentHashMap<String, DeviceSeries>();
+
+    public VitalsStore(int capacity) {
+        mCapacity = capacity;
+    }
+
+    // Returns the float ring for the metric, creating it if needed.
+    public FloatSeriesRing floatSeries(String address, int metric) {
+        DeviceSeries device = device(address);
+        FloatSeriesRing ring = device.findFloat(metric);
+        return ring != null ? ring : device.addFloat(metric, mCapacity);
+    }
+
+    // Prints the count, range, mean and latest value of every ring over the last
+    // {@code windowMillis}, read the way a chart or threshold check would read them.
+    public void dump(PrintWriter pw, long nowMillis, long windowMillis) {
+        pw.println("Vitals (last " + windowMillis / 1000 + "s):");
+        long[] timestamps = new long[mCapacity];
+        float[] values = new float[mCapacity];
+        for (Map.Entry<String, DeviceSeries> entry : mDevices.entrySet()) {
+            DeviceSeries device = entry.getValue();
+            // Rings first: they are published after their keys.
+            FloatSeriesRing[] rings = device.mFloatRings;
+            int[] metrics = device.mFloatMetrics;
+            for (int i = 0; i < rings.length; i++) {
+                int n = rings[i].copySince(nowMillis - windowMillis, timestamps, values);
+                if (n == 0) {
+                    continue;
+                }
+                float min = values[0];
+                float max = values[0];
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    min = Math.min(min, values[j]);
+                    max = Math.max(max, values[j]);
+                    sum += values[j];
+                }
+                pw.println(String.format("  %s %04X n=%d min=%s max=%s mean=%.2f last=%s",
+                        entry.getKey(), metrics[i], n, min, max, sum / n, values[n - 1]));
+            }
+        }
+    }
+
+    private DeviceSeries device(String address) {
+        DeviceSeries device = mDevices.get(address);
+        if (device == null) {
+            DeviceSeries created = new DeviceSeries();
+            device = mDevices.putIfAbsent(address, created);
+            if (device == null) {
+                device = created;
+            }
+        }
+        return device;
+    }
+
+    // A device only ever has a handful of metrics, so they are kept in small parallel arrays that
+    // are replaced wholesale on insert and scanned linearly on lookup.
+    private static final class DeviceSeries {
+        private volatile int[] mFloatMetrics = new int[0];
+        private volatile FloatSeriesRing[] mFloatRings = new FloatSeriesRing[0];
+
+        FloatSeriesRing findFloat(int metric) {
+            FloatSeriesRing[] rings = mFloatRings;
+            int[] metrics = mFloatMetrics;
+            for (int i = 0; i < rings.length; i++) {
+                if (metrics[i] == metric) {
+                    return rings[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized FloatSeriesRing addFloat(int metric, int capacity) {
+            FloatSeriesRing ring = findFloat(metric);
+            if (ring != null) {
+                return ring;
+            }
+            int n = mFloatRings.length;
+            int[] metrics = new int[n + 1];
+            FloatSeriesRing[] rings = new FloatSeriesRing[n + 1];
+            System.arraycopy(mFloatMetrics, 0, metrics, 0, n);
+            System.arraycopy(mFloatRings, 0, rings, 0, n);
+            metrics[n] = metric;
+            rings[n] = ring = new FloatSeriesRing(capacity);
+            // Metrics first: a reader that sees the new rings array must also see its key.
+            mFloatMetrics = metrics;
+            mFloatRings = rings;
+            return ring;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+/**
+ * Builds the APDUs a simulated IEEE 11073-20601 agent sends, in the layouts
+ * the manager's decoders read. Blood pressure reports use the fixed scan
+ * report of the HBF-206IT: two little endian values at offsets 45 and 47 of
+ * the APDU. Thermometer and weight scale reports use their standard
+ * configurations: one (handle, length, FLOAT, absolute time) entry per metric.
+ *
+ * An agent with an extended configuration describes the same objects in a
+ * configuration report, built by {@link #configReport}.
+ */
+public final class AgentApdus {
+    // Device configuration ids of the standard configurations.
+    public static final int CONFIG_BLOOD_PRESSURE = 0x02BC;
+    public static final int CONFIG_THERMOMETER = 0x0320;
+    public static final int CONFIG_WEIGHT_SCALE = 0x05DC;
+    // First extended configuration id; the manager only learns these from a configuration report.
+    public static final int CONFIG_EXTENDED = 0x4000;
+
+    // Size of a blood pressure fixed scan event report, header included.
+    public static final int EVENT_REPORT_SIZE = 54;
+
+    // Association results, and the configuration result that accepts a configuration.
+    public static final int ACCEPTED = 0;
+    public static final int ACCEPTED_UNKNOWN_CONFIG = 3;
+
+    // Nomenclature of the standard configurations' objects.
+    private static final int MDC_MOC_VMO_METRIC_NU = 0x0006;
+    private static final int MDC_ATTR_ID_TYPE = 0x092F;
+    private static final int MDC_ATTR_ATTRIBUTE_VAL_MAP = 0x0A55;
+    private static final int MDC_ATTR_NU_VAL_OBS_SIMP = 0x0A56;
+    private static final int MDC_ATTR_NU_CMPD_VAL_OBS_BASIC = 0x0A4B;
+    private static final int MDC_ATTR_TIME_STAMP_ABS = 0x0990;
+    private static final int MDC_PRESS_BLD_NONINV = 0x4A04;
+    private static final int MDC_TEMP_BODY = 0x4B5C;
+    private static final int MDC_MASS_BODY_ACTUAL = 0xE140;
+    private static final int MDC_RATIO_MASS_BODY_LEN_SQ = 0xE150;
+
+    // A FLOAT value and an absolute time stamp, after the handle and length.
+    private static final int FLOAT_ENTRY_SIZE = 4 + 4 + 8;
+    // 2026-10-19 12:00:00.00, BCD.
+    private static final byte[] ABSOLUTE_TIME = {
+            0x20, 0x26, 0x10, 0x19, 0x12, 0x00, 0x00, 0x00 };
+
+    private AgentApdus() {
+    }
+
+    // Association request with the 20601 data protocol and the given configuration id.
+    public static byte[] associationRequest(long systemId, int configId) {
+        byte[] apdu = new byte[] {
+                (byte) 0xE2, 0x00, 0x00, 0x32,
+                (byte) 0x80, 0x00, 0x00, 0x00,       // association version
+                0x00, 0x01, 0x00, 0x2A,              // one data protocol, 42 bytes
+                0x50, 0x79, 0x00, 0x26,              // 20601, 38 bytes
+                (byte) 0x80, 0x00, 0x00, 0x00,       // protocol version
+                (byte) 0xA0, 0x00,                   // MDER
+                (byte) 0x80, 0x00, 0x00, 0x00,       // nomenclature version
+                0x00, 0x00, 0x00, 0x00,              // functional units
+                (byte) 0x80, 0x00, 0x00, 0x00,       // system type: agent
+                0x00, 0x08, 0, 0, 0, 0, 0, 0, 0, 0,  // system id
+                0x00, 0x00,                          // device configuration id
+                0x00, 0x01, 0x01, 0x00,              // data request mode, init agent count
+                0x00, 0x00, 0x00, 0x00 };            // no options
+        for (int i = 0; i < 8; i++) {
+            apdu[36 + i] = (byte) (systemId >>> (56 - 8 * i));
+        }
+        apdu[44] = (byte) (configId >> 8);
+        apdu[45] = (byte) configId;
+        return apdu;
+    }
+
+    // Confirmed fixed scan event report carrying two values.
+    public static byte[] eventReport(int invokeId, long eventTime, short first, short second) {
+        byte[] apdu = new byte[EVENT_REPORT_SIZE];
+        writeEventReport(apdu, 0, invokeId, eventTime, first, second);
+        return apdu;
+    }
+
+    // Writes a confirmed fixed scan event report into {@code apdu} at {@code offset}.
+    public static void writeEventReport(byte[] apdu, int offset, int invokeId, long eventTime,
+                                        short first, short second) {
+        int length = EVENT_REPORT_SIZE - 4;
+        writeHeader(apdu, offset, EVENT_REPORT_SIZE, invokeId, eventTime, 0x0D1D);
+        put16(apdu, offset + 22, 0xF000);            // data request id
+        put16(apdu, offset + 24, invokeId);          // scan report number
+        put16(apdu, offset + 26, 0x0001);            // one observation
+        put16(apdu, offset + 28, length - 26);
+        put16(apdu, offset + 30, 0x0001);            // object handle
+        put16(apdu, offset + 32, length - 30);
+        for (int i = offset + 34; i < offset + EVENT_REPORT_SIZE; i++) {
+            apdu[i] = 0;
+        }
+        apdu[offset + 45] = (byte) first;
+        apdu[offset + 46] = (byte) (first >> 8);
+        apdu[offset + 47] = (byte) second;
+        apdu[offset + 48] = (byte) (second >> 8);
+    }
+
+    // Size of the event report an agent of the standard configuration sends.
+    public static int eventReportSize(int configId) {
+        switch (configId) {
+            case CONFIG_THERMOMETER:
+                return 30 + FLOAT_ENTRY_SIZE;
+            case CONFIG_WEIGHT_SCALE:
+                return 30 + 2 * FLOAT_ENTRY_SIZE;
+            default:
+                return EVENT_REPORT_SIZE;
+        }
+    }
+
+    // Confirmed event report of the standard configuration {@code configId}: systolic and
+    // diastolic pressure, temperature in tenths of a degree, or weight and BMI in tenths.
+    public static byte[] eventReport(int configId, int invokeId, long eventTime, int first,
+                                     int second) {
+        byte[] apdu = new byte[eventReportSize(configId)];
+        writeEventReport(apdu, 0, configId, invokeId, eventTime, first, second);
+        return apdu;
+    }
+
+    // Writes the event report of eventReport(configId, ...) into {@code apdu} at {@code offset}.
+    public static void writeEventReport(byte[] apdu, int offset, int configId, int invokeId,
+                                        long eventTime, int first, int second) {
+        if (configId != CONFIG_THERMOMETER && configId != CONFIG_WEIGHT_SCALE) {
+            writeEventReport(apdu, offset, invokeId, eventTime, (short) first, (short) second);
+            return;
+        }
+        int size = eventReportSize(configId);
+        writeHeader(apdu, offset, size, invokeId, eventTime, 0x0D1D);  // MDC_NOTI_SCAN_REPORT_FIXED
+        put16(apdu, offset + 22, 0xF000);                              // data request id
+        put16(apdu, offset + 24, invokeId);                            // scan report number
+        put16(apdu, offset + 26, configId == CONFIG_THERMOMETER ? 1 : 2);
+        put16(apdu, offset + 28, size - 30);
+        writeFloatEntry(apdu, offset + 30, 1, first);
+        if (configId == CONFIG_WEIGHT_SCALE) {
+            writeFloatEntry(apdu, offset + 30 + FLOAT_ENTRY_SIZE, 3, second);
+        }
+    }
+
+    // Confirmed configuration report describing the objects of the standard configuration
+    // {@code standardConfigId} under the id {@code configId}.
+    public static byte[] configReport(int invokeId, int configId, int standardConfigId) {
+        switch (standardConfigId) {
+            case CONFIG_THERMOMETER:
+                return configReport(invokeId, configId, new int[] { 1 },
+                        new int[] { MDC_TEMP_BODY });
+            case CONFIG_WEIGHT_SCALE:
+                return configReport(invokeId, configId, new int[] { 1, 3 },
+                        new int[] { MDC_MASS_BODY_ACTUAL, MDC_RATIO_MASS_BODY_LEN_SQ });
+            default:
+                return configReport(invokeId, configId, new int[] { 1 },
+                        new int[] { MDC_PRESS_BLD_NONINV }, MDC_ATTR_NU_CMPD_VAL_OBS_BASIC, 10);
+        }
+    }
+
+    // Confirmed configuration report of numerics with a FLOAT value and an absolute time stamp,
+    // object {@code handles[i]} measuring {@code types[i]}.
+    public static byte[] configReport(int invokeId, int configId, int[] handles, int[] types) {
+        return configReport(invokeId, configId, handles, types, MDC_ATTR_NU_VAL_OBS_SIMP, 4);
+    }
+
+    private static byte[] configReport(int invokeId, int configId, int[] handles, int[] types,
+                                       int valueAttribute, int valueSize) {
+        // Class, handle, attribute count and length; type; value map with two entries.
+        int objectSize = 8 + 8 + 16;
+        int size = 28 + handles.length * objectSize;
+        byte[] apdu = new byte[size];
+        writeHeader(apdu, 0, size, invokeId, 0, 0x0D1C);                // MDC_NOTI_CONFIG
+        put16(apdu, 22, configId);
+        put16(apdu, 24, handles.length);
+        put16(apdu, 26, size - 28);
+        for (int i = 0; i < handles.length; i++) {
+            int p = 28 + i * objectSize;
+            put16(apdu, p, MDC_MOC_VMO_METRIC_NU);
+            put16(apdu, p + 2, handles[i]);
+            put16(apdu, p + 4, 2);
+            put16(apdu, p + 6, objectSize - 8);
+            put16(apdu, p + 8, MDC_ATTR_ID_TYPE);
+            put16(apdu, p + 10, 4);
+            put16(apdu, p + 12, 0x0002);                                // MDC_PART_SCADA
+            put16(apdu, p + 14, types[i]);
+            put16(apdu, p + 16, MDC_ATTR_ATTRIBUTE_VAL_MAP);
+            put16(apdu, p + 18, 12);
+            put16(apdu, p + 20, 2);
+            put16(apdu, p + 22, 8);
+            put16(apdu, p + 24, valueAttribute);
+            put16(apdu, p + 26, valueSize);
+            put16(apdu, p + 28, MDC_ATTR_TIME_STAMP_ABS);
+            put16(apdu, p + 30, 8);
+        }
+        return apdu;
+    }
+
+    public static byte[] releaseRequest() {
+        return new byte[] { (byte) 0xE4, 0x00, 0x00, 0x02, 0x00, 0x00 };
+    }
+
+    public static byte[] abort() {
+        return new byte[] { (byte) 0xE6, 0x00, 0x00, 0x02, 0x00, 0x00 };
+    }
+
+    public static int u16(byte[] b, int i) {
+        return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+
+    // PRST header of a confirmed event report from the MDS, up to the event info length.
+    private static void writeHeader(byte[] apdu, int offset, int size, int invokeId,
+                                    long eventTime, int eventType) {
+        int length = size - 4;
+        put16(apdu, offset, 0xE700);
+        put16(apdu, offset + 2, length);
+        put16(apdu, offset + 4, length - 2);
+        put16(apdu, offset + 6, invokeId);
+        put16(apdu, offset + 8, 0x0101);             // roiv-cmip-confirmed-event-report
+        put16(apdu, offset + 10, length - 8);
+        put16(apdu, offset + 12, 0x0000);            // MDS handle
+        put16(apdu, offset + 14, (int) (eventTime >>> 16));
+        put16(apdu, offset + 16, (int) eventTime);
+        put16(apdu, offset + 18, eventType);
+        put16(apdu, offset + 20, length - 18);
+    }
+
+    // Handle, length, FLOAT of {@code tenths} / 10 and the absolute time.
+    private static void writeFloatEntry(byte[] apdu, int p, int handle, int tenths) {
+        put16(apdu, p, handle);
+        put16(apdu, p + 2, FLOAT_ENTRY_SIZE - 4);
+        put16(apdu, p + 4, 0xFF00 | ((tenths >> 16) & 0xFF));
+        put16(apdu, p + 6, tenths);
+        System.arraycopy(ABSOLUTE_TIME, 0, apdu, p + 8, ABSOLUTE_TIME.length);
+    }
+
+    private static void put16(byte[] b, int i, int value) {
+        b[i] = (byte) (value >> 8);
+        b[i + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs many {@link SimulatedAgent}s on one thread with a selector for their
+ * sockets and a timer queue for their report schedules.
+ */
+final class AgentLoop implements Runnable {
+    private static final class Timer implements Comparable<Timer> {
+        final long due;
+        final SimulatedAgent agent;
+
+        Timer(long due, SimulatedAgent agent) {
+            this.due = due;
+            this.agent = agent;
+        }
+
+        public int compareTo(Timer other) {
+            return due < other.due ? -1 : due > other.due ? 1 : 0;
+        }
+    }
+
+    private final LoadStats mStats;
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<SimulatedAgent> mStarting =
+            new ConcurrentLinkedQueue<SimulatedAgent>();
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+    private volatile boolean mStopped;
+
+    AgentLoop(LoadStats stats) throws IOException {
+        mStats = stats;
+        mSelector = Selector.open();
+    }
+
+    // Hands an agent to the loop, which connects it.
+    void start(SimulatedAgent agent) {
+        mStarting.add(agent);
+        mSelector.wakeup();
+    }
+
+    void stop() {
+        mStopped = true;
+        mSelector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!mStopped) {
+                SimulatedAgent agent;
+                while ((agent = mStarting.poll()) != null) {
+                    connect(agent);
+                }
+                long timeout = 0;
+                Timer next = mTimers.peek();
+                if (next != null) {
+                    timeout = Math.max(1, (next.due - System.nanoTime()) / 1000000);
+                }
+                mSelector.select(timeout);
+                long now = System.nanoTime();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ready(key, (SimulatedAgent) key.attachment(), now);
+                }
+                while ((next = mTimers.peek()) != null && next.due <= now) {
+                    mTimers.poll();
+                    // Skip timers the agent has since rescheduled or cancelled.
+                    if (next.agent.mDueNanos == next.due) {
+                        try {
+                            next.agent.onDue(now);
+                        } catch (IOException e) {
+                            fail(next.agent);
+                        }
+                        schedule(next.agent, 0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                close(key);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Shutting down.
+            }
+        }
+    }
+
+    private void connect(SimulatedAgent agent) {
+        try {
+            agent.mChannel = SocketChannel.open();
+            agent.mChannel.configureBlocking(false);
+            agent.mChannel.socket().setTcpNoDelay(true);
+            if (agent.mChannel.connect(agent.mSink)) {
+                agent.mKey = agent.mChannel.register(mSelector, SelectionKey.OP_READ, agent);
+                agent.onConnected();
+            } else {
+                agent.mKey = agent.mChannel.register(mSelector, SelectionKey.OP_CONNECT, agent);
+            }
+        } catch (IOException e) {
+            fail(agent);
+        }
+    }
+
+    private void ready(SelectionKey key, SimulatedAgent agent, long now) {
+        long due = agent.mDueNanos;
+        try {
+            if (key.isConnectable()) {
+                agent.mChannel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                agent.onConnected();
+                return;
+            }
+            if (key.isWritable()) {
+                agent.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                agent.onReadable(now);
+            }
+        } catch (IOException e) {
+            fail(agent);
+        }
+        schedule(agent, due);
+    }
+
+    // Queues a timer if the agent set a new due time.
+    private void schedule(SimulatedAgent agent, long previousDue) {
+        if (agent.mDueNanos != 0 && agent.mDueNanos != previousDue) {
+            mTimers.add(new Timer(agent.mDueNanos, agent));
+        }
+    }
+
+    private void fail(SimulatedAgent agent) {
+        mStats.failures.incrementAndGet();
+        agent.mDueNanos = 0;
+        if (agent.mKey != null) {
+            close(agent.mKey);
+        } else if (agent.mChannel != null) {
+            try {
+                agent.mChannel.close();
+            } catch (IOException e) {
+                // Already failed.
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes the synthetic replay corpus, one file per specialization:
+ *
+ *   java -cp out com.larc.bluetooth.health.tools.CorpusGenerator tools/corpus
+ *
+ * Every case is built from the agent side with {@link AgentApdus}, and the
+ * expected answers are spelled out here from the 20601 message layouts
+ * rather than taken from the manager, so the corpus checks the manager
+ * instead of echoing it. The same exchanges are delivered whole, coalesced
+ * into one read and cut into fragments, and mixed with oversized and
+ * malformed frames.
+ *
+ * Reports use each specialization's own layout and readings are expected in
+ * its own nomenclature: systolic and diastolic pressure from the HBF-206IT
+ * report, body temperature from the thermometer's, weight and BMI from the
+ * scale's. Agents with an extended configuration are expected to be asked
+ * for it, and to have their configuration report answered.
+ *
+ * Body composition analyzers have no decoder yet, so their cases are marked
+ * as known failures. Output is deterministic; regenerate after changing this
+ * file and review the diff.
+ */
+public class CorpusGenerator {
+    private static final int MDC_PRESS_BLD_NONINV_SYS = 0x4A05;
+    private static final int MDC_PRESS_BLD_NONINV_DIA = 0x4A06;
+    private static final int MDC_TEMP_BODY = 0x4B5C;
+    private static final int MDC_MASS_BODY_ACTUAL = 0xE140;
+    private static final int MDC_BODY_FAT = 0xE14C;
+    private static final int MDC_RATIO_MASS_BODY_LEN_SQ = 0xE150;
+    private static final int MAX_APDU_SIZE = 8 * 1024;
+
+    private static final int ACCEPTED = AgentApdus.ACCEPTED;
+    private static final int ACCEPTED_UNKNOWN_CONFIG = AgentApdus.ACCEPTED_UNKNOWN_CONFIG;
+    // Configuration report result.
+    private static final int UNSUPPORTED_CONFIG = 0x0002;
+
+    // Association accepted, with the phone's system id, then a Get of all MDS attributes.
+    private static final byte[] AARE_ACCEPTED = ReplayCase.hex(
+            "E3 00 00 2C 00 00 50 79 00 26 80 00 00 00 80 00 80 00 00 00 00 00 00 00"
+            + " 80 00 00 00 00 08 3C 5A 37 FF FE 95 EE E3 00 00 00 00 00 00 00 00 00 00");
+    private static final byte[] GET_MDS = ReplayCase.hex(
+            "E7 00 00 0E 00 0C 00 24 01 03 00 06 00 00 00 00 00 00");
+    private static final byte[] RLRE_NORMAL = ReplayCase.hex("E5 00 00 02 00 00");
+    private static final byte[] ABRT_UNDEFINED = ReplayCase.hex("E6 00 00 02 00 00");
+
+    private static final class Specialization {
+        final String name;
+        final int dataType;
+        // Standard configuration whose report layout the agent uses.
+        final int deviceConfig;
+        // Configuration id the agent associates with.
+        final int configId;
+        final long systemId;
+        // Metric of the first and second value of a report; 0 if the report has one.
+        final int[] metrics;
+        // Values are sent in units of 1 / divisor.
+        final int divisor;
+        final int[][] values;
+        // Objects of the configuration report: handle and type of each, or null for those of
+        // the standard configuration.
+        final int[] configHandles;
+        final int[] configTypes;
+        // Whether the decoder checks configuration reports, rather than accepting any.
+        final boolean checksConfig;
+        final String knownFailure;
+
+        Specialization(String name, int dataType, int deviceConfig, int configId, long systemId,
+                       int[] metrics, int divisor, int[][] values, int[] configHandles,
+                       int[] configTypes, boolean checksConfig, String knownFailure) {
+            this.name = name;
+            this.dataType = dataType;
+            this.deviceConfig = deviceConfig;
+            this.configId = configId;
+            this.systemId = systemId;
+            this.metrics = metrics;
+            this.divisor = divisor;
+            this.values = values;
+            this.configHandles = configHandles;
+            this.configTypes = configTypes;
+            this.checksConfig = checksConfig;
+            this.knownFailure = knownFailure;
+        }
+
+        boolean extended() {
+            return configId >= AgentApdus.CONFIG_EXTENDED;
+        }
+
+        // The same device associating with an extended configuration id.
+        Specialization withExtendedConfig() {
+            return new Specialization(name, dataType, deviceConfig, AgentApdus.CONFIG_EXTENDED,
+                    systemId, metrics, divisor, values, configHandles, configTypes, checksConfig,
+                    knownFailure);
+        }
+    }
+
+    private static final Specialization[] SPECIALIZATIONS = {
+            new Specialization("blood-pressure", 0x1007, AgentApdus.CONFIG_BLOOD_PRESSURE,
+                    AgentApdus.CONFIG_BLOOD_PRESSURE, 0x0009FBFFFE1A2B3CL,
+                    new int[] { MDC_PRESS_BLD_NONINV_SYS, MDC_PRESS_BLD_NONINV_DIA }, 1,
+                    new int[][] { { 120, 80 }, { 135, 88 }, { 118, 76 } }, null, null, false,
+                    null),
+            new Specialization("thermometer", 0x1008, AgentApdus.CONFIG_THERMOMETER,
+                    AgentApdus.CONFIG_THERMOMETER, 0x0009FBFFFE1A2B3DL,
+                    new int[] { MDC_TEMP_BODY, 0 }, 10,
+                    new int[][] { { 366, 0 }, { 371, 0 }, { 368, 0 } }, null, null, true, null),
+            new Specialization("weight-scale", 0x100F, AgentApdus.CONFIG_WEIGHT_SCALE,
+                    AgentApdus.CONFIG_WEIGHT_SCALE, 0x0009FBFFFE1A2B3EL,
+                    new int[] { MDC_MASS_BODY_ACTUAL, MDC_RATIO_MASS_BODY_LEN_SQ }, 10,
+                    new int[][] { { 725, 237 }, { 724, 236 }, { 731, 239 } }, null, null, true,
+                    null),
+            // No standard configuration: weight and body fat under an extended one.
+            new Specialization("body-composition", 0x1014, AgentApdus.CONFIG_WEIGHT_SCALE,
+                    AgentApdus.CONFIG_EXTENDED, 0x0009FBFFFE1A2B3FL,
+                    new int[] { MDC_MASS_BODY_ACTUAL, MDC_BODY_FAT }, 10,
+                    new int[][] { { 725, 215 }, { 724, 214 }, { 731, 219 } },
+                    new int[] { 1, 3 }, new int[] { MDC_MASS_BODY_ACTUAL, MDC_BODY_FAT }, true,
+                    "no body composition decoder yet"),
+    };
+
+    /**
+     * An APDU the agent sends and what the manager must make of it.
+     */
+    private static final class Apdu {
+        final byte[] bytes;
+        byte[] response = new byte[0];
+        // Readings expected of a report: values[i] / divisor of metrics[i], where not 0.
+        int[] metrics;
+        int divisor;
+        int[] values;
+        int decodeErrors;
+        int confirmations;
+        int duplicates;
+
+        Apdu(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final Random mRandom = new Random(20601);
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "tools/corpus");
+        dir.mkdirs();
+        CorpusGenerator generator = new CorpusGenerator();
+        for (Specialization specialization : SPECIALIZATIONS) {
+            File file = new File(dir, specialization.name + ".txt");
+            PrintWriter out = new PrintWriter(new FileWriter(file));
+            try {
+                out.println("# Synthetic " + specialization.name + " exchanges, written by"
+                        + " CorpusGenerator. Do not edit.");
+                out.println();
+                for (ReplayCase c : generator.cases(specialization)) {
+                    c.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            System.out.println("Wrote " + file);
+        }
+    }
+
+    private List<ReplayCase> cases(Specialization s) {
+        List<ReplayCase> cases = new ArrayList<ReplayCase>();
+        String p = s.name + "/";
+        List<Apdu> session = session(s);
+        int associating = associate(s).size();
+
+        cases.add(whole(p + "association", session.subList(0, associating)));
+        cases.add(whole(p + "session", session));
+        cases.add(deliver(p + "coalesced", session, new int[] { total(session) }));
+        cases.add(deliver(p + "fragmented", session, randomCuts(total(session), 1, 9)));
+        List<Apdu> start = session.subList(0, associating + 3);
+        cases.add(deliver(p + "bytewise", start, randomCuts(total(start), 1, 1)));
+        cases.add(deliver(p + "split-header", session, headerCuts(session)));
+        if (!s.extended()) {
+            Specialization extended = s.withExtendedConfig();
+            cases.add(whole(p + "configuration", join(associate(extended),
+                    report(extended, 0x0030, 0x00003000, s.values[0]))));
+        }
+        if (s.checksConfig && s.configTypes == null) {
+            cases.add(whole(p + "foreign-configuration", foreignConfiguration(s)));
+        }
+
+        Apdu report = report(s, 0x0010, 0x00001000, s.values[0]);
+        Apdu again = report(s, 0x0010, 0x00001000, s.values[0]);
+        again.values = null;
+        again.duplicates = 1;
+        cases.add(whole(p + "retransmission", join(associate(s), report, again)));
+
+        Apdu unconfirmed = report(s, 0x0011, 0x00001100, s.values[1]);
+        unconfirmed.bytes[9] = 0x00;     // roiv-cmip-event-report
+        unconfirmed.response = new byte[0];
+        unconfirmed.confirmations = 0;
+        cases.add(whole(p + "unconfirmed", join(associate(s), unconfirmed)));
+
+        cases.add(whole(p + "unsupported-event", join(associate(s), variableScanReport(s))));
+        cases.add(whole(p + "truncated-report", join(associate(s), truncatedReport(s))));
+        cases.add(whole(p + "short-data", join(associate(s), shortData())));
+        List<Apdu> longReport = join(associate(s), longReport(s, 600));
+        cases.add(deliver(p + "long-report", longReport, fixedCuts(total(longReport), 100)));
+
+        cases.add(oversized(p + "oversized", s, false));
+        cases.add(oversized(p + "oversized-split-header", s, true));
+        cases.add(malformed(p + "malformed-type", s, ReplayCase.hex("D0 00 00 02 00 00"),
+                false));
+        cases.add(malformed(p + "malformed-length", s, ReplayCase.hex("E7 01 00 02 00 00"),
+                false));
+        cases.add(malformed(p + "malformed-split-header", s,
+                ReplayCase.hex("E2 05 00 02 00 00"), true));
+
+        Apdu abort = new Apdu(AgentApdus.abort());
+        cases.add(whole(p + "agent-abort", join(associate(s), abort)));
+        for (ReplayCase c : cases) {
+            // Everything above associates, which is where a missing decoder first shows.
+            c.knownFailure = s.knownFailure;
+        }
+        Apdu release = new Apdu(AgentApdus.releaseRequest());
+        release.response = RLRE_NORMAL;
+        cases.add(whole(p + "release-unassociated", Arrays.asList(release)));
+        for (ReplayCase c : cases) {
+            c.dataType = s.dataType;
+        }
+        return cases;
+    }
+
+    // Association, MDS attributes, configuration if asked for, three readings and release.
+    private List<Apdu> session(Specialization s) {
+        List<Apdu> apdus = new ArrayList<Apdu>();
+        List<Apdu> associating = associate(s);
+        apdus.add(associating.get(0));
+        apdus.add(new Apdu(ReplayCase.hex("E7 00 00 0E 00 0C 00 24 02 03 00 06 00 00 00 00"
+                + " 00 00")));
+        apdus.addAll(associating.subList(1, associating.size()));
+        for (int i = 0; i < s.values.length; i++) {
+            apdus.add(report(s, 0x0002 + i, 0x00010000 + 0x100 * i, s.values[i]));
+        }
+        Apdu release = new Apdu(AgentApdus.releaseRequest());
+        release.response = RLRE_NORMAL;
+        apdus.add(release);
+        return apdus;
+    }
+
+    // The association and, for an extended configuration, the configuration report it needs.
+    private static List<Apdu> associate(Specialization s) {
+        List<Apdu> apdus = new ArrayList<Apdu>();
+        apdus.add(association(s));
+        if (s.extended()) {
+            apdus.add(configReport(s, 0x0001, configReportBytes(s, 0x0001), ACCEPTED));
+        }
+        return apdus;
+    }
+
+    private static Apdu association(Specialization s) {
+        Apdu apdu = new Apdu(AgentApdus.associationRequest(s.systemId, s.configId));
+        byte[] aare = AARE_ACCEPTED.clone();
+        put16(aare, 4, s.extended() ? ACCEPTED_UNKNOWN_CONFIG : ACCEPTED);
+        apdu.response = concat(aare, GET_MDS);
+        return apdu;
+    }
+
+    private static byte[] configReportBytes(Specialization s, int invokeId) {
+        return s.configTypes == null
+                ? AgentApdus.configReport(invokeId, s.configId, s.deviceConfig)
+                : AgentApdus.configReport(invokeId, s.configId, s.configHandles, s.configTypes);
+    }
+
+    // An extended configuration describing another device type: rejected, after which reports
+    // are confirmed but not decoded.
+    private static List<Apdu> foreignConfiguration(Specialization s) {
+        Specialization extended = s.withExtendedConfig();
+        int other = s.deviceConfig == AgentApdus.CONFIG_THERMOMETER
+                ? AgentApdus.CONFIG_WEIGHT_SCALE : AgentApdus.CONFIG_THERMOMETER;
+        Apdu config = configReport(extended, 0x0001,
+                AgentApdus.configReport(0x0001, extended.configId, other), UNSUPPORTED_CONFIG);
+        Apdu report = report(extended, 0x0031, 0x00003100, s.values[1]);
+        report.values = null;
+        report.decodeErrors = 1;
+        return Arrays.asList(association(extended), config, report);
+    }
+
+    // A configuration report, answered with {@code result} under its report id.
+    private static Apdu configReport(Specialization s, int invokeId, byte[] bytes, int result) {
+        Apdu apdu = new Apdu(bytes);
+        byte[] response = new byte[26];
+        put16(response, 0, 0xE700);
+        put16(response, 2, 22);
+        put16(response, 4, 20);
+        put16(response, 6, invokeId);
+        put16(response, 8, 0x0201);      // rors-cmip-confirmed-event-report
+        put16(response, 10, 14);
+        System.arraycopy(bytes, 12, response, 12, 8);
+        put16(response, 20, 4);
+        put16(response, 22, s.configId);
+        put16(response, 24, result);
+        apdu.response = response;
+        apdu.confirmations = 1;
+        return apdu;
+    }
+
+    private static Apdu report(Specialization s, int invokeId, long eventTime, int[] values) {
+        Apdu apdu = new Apdu(AgentApdus.eventReport(s.deviceConfig, invokeId, eventTime,
+                values[0], values[1]));
+        apdu.metrics = s.metrics;
+        apdu.divisor = s.divisor;
+        apdu.values = values;
+        apdu.response = eventReportResult(apdu.bytes);
+        apdu.confirmations = 1;
+        return apdu;
+    }
+
+    // A report event the manager does not decode, still to be confirmed.
+    private static Apdu variableScanReport(Specialization s) {
+        Apdu apdu = report(s, 0x0020, 0x00002000, s.values[0]);
+        put16(apdu.bytes, 18, 0x0D1E);   // MDC_NOTI_SCAN_REPORT_VAR
+        apdu.values = null;
+        apdu.response = eventReportResult(apdu.bytes);
+        return apdu;
+    }
+
+    // A fixed scan report cut off inside its first value: confirmed, not decoded.
+    private static Apdu truncatedReport(Specialization s) {
+        byte[] full = AgentApdus.eventReport(s.deviceConfig, 0x0021, 0x00002100,
+                s.values[0][0], s.values[0][1]);
+        byte[] bytes = Arrays.copyOf(full, 36);
+        put16(bytes, 2, 32);
+        put16(bytes, 4, 30);
+        put16(bytes, 10, 24);
+        put16(bytes, 20, 14);
+        put16(bytes, 28, 6);
+        Apdu apdu = new Apdu(bytes);
+        apdu.response = eventReportResult(bytes);
+        apdu.confirmations = 1;
+        apdu.decodeErrors = 1;
+        return apdu;
+    }
+
+    // Data APDU too short to hold an invoke id and choice.
+    private static Apdu shortData() {
+        Apdu apdu = new Apdu(ReplayCase.hex("E7 00 00 06 00 04 00 30 01 01"));
+        apdu.decodeErrors = 1;
+        return apdu;
+    }
+
+    // A fixed scan report padded to {@code size} bytes, larger than the manager's first buffer.
+    private static Apdu longReport(Specialization s, int size) {
+        int[] values = s.values[2];
+        byte[] bytes = Arrays.copyOf(AgentApdus.eventReport(s.deviceConfig, 0x0022, 0x00002200,
+                values[0], values[1]), size);
+        put16(bytes, 2, size - 4);
+        put16(bytes, 4, size - 6);
+        put16(bytes, 10, size - 12);
+        put16(bytes, 20, size - 22);
+        put16(bytes, 28, size - 30);
+        Apdu apdu = new Apdu(bytes);
+        apdu.metrics = s.metrics;
+        apdu.divisor = s.divisor;
+        apdu.values = values;
+        apdu.response = eventReportResult(bytes);
+        apdu.confirmations = 1;
+        return apdu;
+    }
+
+    // Echo of invoke id, handle, event time and event type, with an empty reply.
+    private static byte[] eventReportResult(byte[] report) {
+        byte[] result = new byte[22];
+        put16(result, 0, 0xE700);
+        put16(result, 2, 18);
+        put16(result, 4, 16);
+        System.arraycopy(report, 6, result, 6, 2);
+        put16(result, 8, 0x0201);
+        put16(result, 10, 10);
+        System.arraycopy(report, 12, result, 12, 8);
+        return result;
+    }
+
+    // An APDU announcing more than the manager accepts: aborted, its bytes skipped, and the
+    // report behind it handled.
+    private ReplayCase oversized(String name, Specialization s, boolean splitHeader) {
+        ReplayCase c = new ReplayCase(name);
+        for (Apdu apdu : associate(s)) {
+            add(c.in(apdu.bytes), apdu, c);
+        }
+        int size = MAX_APDU_SIZE + 800;
+        byte[] huge = new byte[size];
+        put16(huge, 0, 0xE700);
+        put16(huge, 2, size - 4);
+        Arrays.fill(huge, 4, size, (byte) 0xAA);
+        int offset = 0;
+        if (splitHeader) {
+            c.in(Arrays.copyOfRange(huge, 0, 2));
+            offset = 2;
+        }
+        ReplayCase.Step first = c.in(Arrays.copyOfRange(huge, offset, offset + 1000));
+        first.out = ABRT_UNDEFINED;
+        first.errors = 1;
+        c.decodeErrors++;
+        offset += 1000;
+        while (size - offset > 3000) {
+            c.in(Arrays.copyOfRange(huge, offset, offset + 3000));
+            offset += 3000;
+        }
+        Apdu report = report(s, 0x0040, 0x00004000, s.values[1]);
+        add(c.in(concat(Arrays.copyOfRange(huge, offset, size), report.bytes)), report, c);
+        return c;
+    }
+
+    // A frame with a header that is not a 20601 one: aborted, and the rest of that read dropped.
+    // The next read starts afresh.
+    private ReplayCase malformed(String name, Specialization s, byte[] frame,
+                                 boolean splitHeader) {
+        ReplayCase c = new ReplayCase(name);
+        Apdu first = association(s);
+        ReplayCase.Step step;
+        if (splitHeader) {
+            c.in(Arrays.copyOfRange(frame, 0, 2));
+            step = c.in(concat(Arrays.copyOfRange(frame, 2, frame.length), first.bytes));
+        } else {
+            step = c.in(concat(frame, first.bytes));
+        }
+        step.out = ABRT_UNDEFINED;
+        step.errors = 1;
+        c.decodeErrors++;
+        for (Apdu apdu : associate(s)) {
+            add(c.in(apdu.bytes), apdu, c);
+        }
+        Apdu report = report(s, 0x0050, 0x00005000, s.values[0]);
+        add(c.in(report.bytes), report, c);
+        return c;
+    }
+
+    // Every APDU in a read of its own.
+    private static ReplayCase whole(String name, List<Apdu> apdus) {
+        ReplayCase c = new ReplayCase(name);
+        for (Apdu apdu : apdus) {
+            add(c.in(apdu.bytes), apdu, c);
+        }
+        return c;
+    }
+
+    // The APDUs back to back, cut into reads of the given sizes.  What an APDU causes is
+    // expected on the read that completes it.
+    private static ReplayCase deliver(String name, List<Apdu> apdus, int[] cuts) {
+        ReplayCase c = new ReplayCase(name);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int[] ends = new int[apdus.size()];
+        for (int i = 0; i < apdus.size(); i++) {
+            stream.write(apdus.get(i).bytes, 0, apdus.get(i).bytes.length);
+            ends[i] = stream.size();
+        }
+        byte[] bytes = stream.toByteArray();
+        int offset = 0;
+        int next = 0;
+        for (int cut : cuts) {
+            ReplayCase.Step step = c.in(Arrays.copyOfRange(bytes, offset, offset + cut));
+            offset += cut;
+            while (next < apdus.size() && ends[next] <= offset) {
+                add(step, apdus.get(next++), c);
+            }
+        }
+        if (offset != bytes.length) {
+            throw new IllegalStateException(name + ": cuts cover " + offset + " of "
+                    + bytes.length + " bytes");
+        }
+        return c;
+    }
+
+    private static void add(ReplayCase.Step step, Apdu apdu, ReplayCase c) {
+        step.out = concat(step.out, apdu.response);
+        if (apdu.values != null) {
+            for (int i = 0; i < apdu.metrics.length; i++) {
+                if (apdu.metrics[i] != 0) {
+                    step.expect(apdu.metrics[i], apdu.values[i] / (float) apdu.divisor);
+                }
+            }
+        }
+        c.decodeErrors += apdu.decodeErrors;
+        c.confirmations += apdu.confirmations;
+        c.duplicates += apdu.duplicates;
+    }
+
+    private int[] randomCuts(int total, int min, int max) {
+        List<Integer> cuts = new ArrayList<Integer>();
+        for (int left = total; left > 0; ) {
+            int n = Math.min(left, min + mRandom.nextInt(max - min + 1));
+            cuts.add(n);
+            left -= n;
+        }
+        return toArray(cuts);
+    }
+
+    // Each APDU cut inside its header and right after it.
+    private static int[] headerCuts(List<Apdu> apdus) {
+        List<Integer> cuts = new ArrayList<Integer>();
+        for (Apdu apdu : apdus) {
+            cuts.add(2);
+            cuts.add(2);
+            if (apdu.bytes.length > 4) {
+                cuts.add(apdu.bytes.length - 4);
+            }
+        }
+        return toArray(cuts);
+    }
+
+    private static int[] fixedCuts(int total, int size) {
+        List<Integer> cuts = new ArrayList<Integer>();
+        for (int left = total; left > 0; left -= size) {
+            cuts.add(Math.min(left, size));
+        }
+        return toArray(cuts);
+    }
+
+    private static List<Apdu> join(List<Apdu> first, Apdu... more) {
+        List<Apdu> apdus = new ArrayList<Apdu>(first);
+        apdus.addAll(Arrays.asList(more));
+        return apdus;
+    }
+
+    private static int total(List<Apdu> apdus) {
+        int total = 0;
+        for (Apdu apdu : apdus) {
+            total += apdu.bytes.length;
+        }
+        return total;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static void put16(byte[] b, int i, int value) {
+        b[i] = (byte) (value >> 8);
+        b[i + 1] = (byte) value;
+    }
+}
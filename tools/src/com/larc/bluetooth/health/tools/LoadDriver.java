@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.ChannelCounters;
+import com.larc.bluetooth.health.CounterRegistry;
+import com.larc.bluetooth.health.ReportDecoder;
+import com.larc.bluetooth.health.Specialization;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the manager core. Runs simulated agents against
+ * {@code ManagerSession}s over local sockets, stepping through increasing
+ * agent counts, and prints per step the APDUs the manager handled per second,
+ * the agents' confirmation latency percentiles and the heap each session
+ * costs.
+ *
+ *   java -cp out com.larc.bluetooth.health.tools.LoadDriver \
+ *       [--agents 100,1000,5000] [--seconds 10] [--rate 1] [--reports 20] \
+ *       [--mix bp:2,thermo:1,scale:1] [--config standard] \
+ *       [--manager-threads 2] [--agent-threads 2]
+ *
+ * Every device type in the mix gets a sink of its own, a listening socket
+ * whose sessions use that specialization's decoder, and its agents send
+ * reports in the type's layout. With --config extended the agents associate
+ * with extended configuration ids, so every association also goes through
+ * the configuration report and its confirmation.
+ *
+ * Each agent uses two sockets, so large steps need a matching open file limit.
+ */
+public class LoadDriver {
+    private final CounterRegistry mCounters = new CounterRegistry();
+    private final AtomicLong mObservations = new AtomicLong();
+    private final LoadStats mStats = new LoadStats();
+    private final List<ManagerLoop> mManagers = new ArrayList<ManagerLoop>();
+    private final List<AgentLoop> mAgents = new ArrayList<AgentLoop>();
+    private final List<ServerSocketChannel> mServers = new ArrayList<ServerSocketChannel>();
+    // Sink address per standard configuration id.
+    private final Map<Integer, InetSocketAddress> mSinks =
+            new HashMap<Integer, InetSocketAddress>();
+
+    // Options.
+    private int[] mSteps = { 100, 1000 };
+    private int mSeconds = 10;
+    private double mRate = 1;
+    private int mReports = 20;
+    private int[] mMix = { AgentApdus.CONFIG_BLOOD_PRESSURE };
+    private boolean mExtended;
+    private int mManagerThreads = 2;
+    private int mAgentThreads = 2;
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        driver.parse(args);
+        driver.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("--agents".equals(args[i])) {
+                String[] steps = value.split(",");
+                mSteps = new int[steps.length];
+                for (int j = 0; j < steps.length; j++) {
+                    mSteps[j] = Integer.parseInt(steps[j].trim());
+                }
+            } else if ("--seconds".equals(args[i])) {
+                mSeconds = Integer.parseInt(value);
+            } else if ("--rate".equals(args[i])) {
+                mRate = Double.parseDouble(value);
+            } else if ("--reports".equals(args[i])) {
+                mReports = Integer.parseInt(value);
+            } else if ("--mix".equals(args[i])) {
+                mMix = parseMix(value);
+            } else if ("--config".equals(args[i])) {
+                if (!"standard".equals(value) && !"extended".equals(value)) {
+                    throw new IllegalArgumentException("Unknown configuration " + value);
+                }
+                mExtended = "extended".equals(value);
+            } else if ("--manager-threads".equals(args[i])) {
+                mManagerThreads = Integer.parseInt(value);
+            } else if ("--agent-threads".equals(args[i])) {
+                mAgentThreads = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    // "bp:2,thermo:1" gives two blood pressure agents for each thermometer.
+    private static int[] parseMix(String value) {
+        List<Integer> configs = new ArrayList<Integer>();
+        for (String part : value.split(",")) {
+            String[] kv = part.trim().split(":");
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1]) : 1;
+            int config;
+            if ("bp".equals(kv[0])) {
+                config = AgentApdus.CONFIG_BLOOD_PRESSURE;
+            } else if ("thermo".equals(kv[0])) {
+                config = AgentApdus.CONFIG_THERMOMETER;
+            } else if ("scale".equals(kv[0])) {
+                config = AgentApdus.CONFIG_WEIGHT_SCALE;
+            } else {
+                throw new IllegalArgumentException("Unknown device type " + kv[0]);
+            }
+            for (int i = 0; i < weight; i++) {
+                configs.add(config);
+            }
+        }
+        int[] mix = new int[configs.size()];
+        for (int i = 0; i < mix.length; i++) {
+            mix[i] = configs.get(i);
+        }
+        return mix;
+    }
+
+    // The specialization a sink for agents of the standard configuration is registered for.
+    private static Specialization specialization(int configId) {
+        switch (configId) {
+            case AgentApdus.CONFIG_THERMOMETER:
+                return Specialization.THERMOMETER;
+            case AgentApdus.CONFIG_WEIGHT_SCALE:
+                return Specialization.WEIGHT_SCALE;
+            default:
+                return Specialization.BLOOD_PRESSURE;
+        }
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < mManagerThreads; i++) {
+            ManagerLoop loop = new ManagerLoop(i, mManagerThreads, mCounters, mObservations);
+            mManagers.add(loop);
+            start(loop, "manager-" + i);
+        }
+        for (int i = 0; i < mAgentThreads; i++) {
+            AgentLoop loop = new AgentLoop(mStats);
+            mAgents.add(loop);
+            start(loop, "agents-" + i);
+        }
+        for (int config : mMix) {
+            if (!mSinks.containsKey(config)) {
+                openSink(config);
+            }
+        }
+
+        System.out.printf("%.1f reports/s per agent, %d reports per association, %d s per step,"
+                + " %s configurations%n", mRate, mReports, mSeconds,
+                mExtended ? "extended" : "standard");
+        System.out.printf("%8s %10s %10s %8s %8s %8s %12s %8s%n", "agents", "apdus/s",
+                "confirms/s", "p50 us", "p90 us", "p99 us", "heap/session", "failed");
+        long intervalNanos = (long) (1000000000L / mRate);
+        int running = 0;
+        for (int step : mSteps) {
+            List<SimulatedAgent> added = new ArrayList<SimulatedAgent>();
+            for (int i = running; i < step; i++) {
+                int config = mMix[i % mMix.length];
+                added.add(new SimulatedAgent(i, mSinks.get(config), config, mExtended, mReports,
+                        intervalNanos, mStats));
+            }
+            // Agents are allocated before the baseline so the difference is the sessions.
+            long before = usedHeap();
+            long associated = mStats.associations.get();
+            for (int i = 0; i < added.size(); i++) {
+                mAgents.get(i % mAgents.size()).start(added.get(i));
+            }
+            running = Math.max(running, step);
+            waitForAssociations(associated + added.size(), 30000);
+            long heapPerSession = added.isEmpty() ? 0 : (usedHeap() - before) / added.size();
+
+            long apdusBefore = apdusIn();
+            long confirmedBefore = mStats.confirmed.get();
+            mStats.confirmationLatency.reset();
+            long start = System.nanoTime();
+            Thread.sleep(mSeconds * 1000L);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%8d %10.0f %10.0f %8d %8d %8d %12d %8d%n", running,
+                    (apdusIn() - apdusBefore) / elapsed,
+                    (mStats.confirmed.get() - confirmedBefore) / elapsed,
+                    mStats.confirmationLatency.percentileMicros(50),
+                    mStats.confirmationLatency.percentileMicros(90),
+                    mStats.confirmationLatency.percentileMicros(99),
+                    heapPerSession, mStats.failures.get());
+        }
+
+        for (AgentLoop loop : mAgents) {
+            loop.stop();
+        }
+        for (ManagerLoop loop : mManagers) {
+            loop.stop();
+        }
+        for (ServerSocketChannel server : mServers) {
+            server.close();
+        }
+        System.out.println("manager " + ChannelCounters.format(mCounters.totals())
+                + " observations=" + mObservations.get());
+        System.out.println("agents associations=" + mStats.associations.get()
+                + " configurations=" + mStats.configurations.get()
+                + " releases=" + mStats.releases.get() + " aborts=" + mStats.aborts.get());
+    }
+
+    // Listens for agents of the standard configuration, like a sink registered for its type.
+    private void openSink(int config) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        mServers.add(server);
+        mSinks.put(config, (InetSocketAddress) server.socket().getLocalSocketAddress());
+        final Specialization specialization = specialization(config);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept(server, specialization.decoder);
+            }
+        }, "acceptor-" + specialization.name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(ServerSocketChannel server, ReportDecoder decoder) {
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                mManagers.get(next++ % mManagers.size()).add(channel, decoder);
+            }
+        } catch (IOException e) {
+            // Server closed.
+        }
+    }
+
+    private void waitForAssociations(long target, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mStats.associations.get() < target && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private long apdusIn() {
+        long[] totals = mCounters.totals();
+        long apdus = 0;
+        for (int i = ChannelCounters.APDU_E2; i <= ChannelCounters.APDU_E7; i++) {
+            apdus += totals[i];
+        }
+        return apdus;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
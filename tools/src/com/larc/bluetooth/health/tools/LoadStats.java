@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the simulated agents observed, shared by all agent loops.
+ */
+final class LoadStats {
+    final LatencyHistogram confirmationLatency = new LatencyHistogram();
+    final AtomicLong associations = new AtomicLong();
+    final AtomicLong configurations = new AtomicLong();
+    final AtomicLong reportsSent = new AtomicLong();
+    final AtomicLong confirmed = new AtomicLong();
+    final AtomicLong releases = new AtomicLong();
+    final AtomicLong aborts = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.CounterRegistry;
+import com.larc.bluetooth.health.ManagerSession;
+import com.larc.bluetooth.health.ReportDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves many agent connections on one thread, one {@link ManagerSession}
+ * per connection, the way the service's read threads would if every channel
+ * were a socket. Each connection is decoded with the decoder of the sink it
+ * was accepted on.
+ */
+final class ManagerLoop implements Runnable {
+    private static final class Accepted {
+        final SocketChannel channel;
+        final ReportDecoder decoder;
+
+        Accepted(SocketChannel channel, ReportDecoder decoder) {
+            this.channel = channel;
+            this.decoder = decoder;
+        }
+    }
+
+    private final class Connection implements ManagerSession.Transport, ManagerSession.Listener {
+        final SocketChannel channel;
+        final ManagerSession session;
+        SelectionKey key;
+        // Bytes a send could not write yet; only allocated once a write comes up short.
+        ByteBuffer pending;
+
+        Connection(SocketChannel channel, int id, ReportDecoder decoder) {
+            this.channel = channel;
+            session = new ManagerSession(String.format("00:00:00:%02X:%02X:%02X",
+                    (id >> 16) & 0xFF, (id >> 8) & 0xFF, id & 0xFF), id, decoder, this, this);
+        }
+
+        public void send(byte[] apdu, int offset, int length) throws IOException {
+            if (pending == null || !pending.hasRemaining()) {
+                ByteBuffer buffer = ByteBuffer.wrap(apdu, offset, length);
+                channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                offset += length - buffer.remaining();
+                length = buffer.remaining();
+            }
+            if (pending == null) {
+                pending = ByteBuffer.allocate(Math.max(512, length));
+                pending.flip();
+            }
+            pending.compact();
+            if (pending.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2 + length);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(apdu, offset, length).flip();
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void flush() throws IOException {
+            channel.write(pending);
+            if (!pending.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        public void onAssociated(ManagerSession session) {
+        }
+
+        public void onObservation(ManagerSession session, int metric, long timestampMillis,
+                float value) {
+            mObservations.incrementAndGet();
+        }
+
+        public void onDuplicate(ManagerSession session, int invokeId) {
+        }
+
+        public void onReleased(ManagerSession session) {
+        }
+
+        public void onProtocolError(ManagerSession session, int type, int length) {
+        }
+    }
+
+    private final CounterRegistry mCounters;
+    private final AtomicLong mObservations;
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Accepted> mAccepted =
+            new ConcurrentLinkedQueue<Accepted>();
+    private final byte[] mReadBuffer = new byte[16 * 1024];
+    private final ByteBuffer mRead = ByteBuffer.wrap(mReadBuffer);
+    private final int mIdStride;
+    private volatile boolean mStopped;
+    private int mNextId;
+
+    // Loop {@code index} of {@code count} numbers its connections index, index + count, ...
+    ManagerLoop(int index, int count, CounterRegistry counters, AtomicLong observations)
+            throws IOException {
+        mNextId = index;
+        mIdStride = count;
+        mCounters = counters;
+        mObservations = observations;
+        mSelector = Selector.open();
+    }
+
+    // Hands a connection accepted on the sink with {@code decoder} to the loop.
+    void add(SocketChannel channel, ReportDecoder decoder) {
+        mAccepted.add(new Accepted(channel, decoder));
+        mSelector.wakeup();
+    }
+
+    void stop() {
+        mStopped = true;
+        mSelector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!mStopped) {
+                Accepted accepted;
+                while ((accepted = mAccepted.poll()) != null) {
+                    SocketChannel channel = accepted.channel;
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection connection = new Connection(channel, mNextId, accepted.decoder);
+                    mNextId += mIdStride;
+                    connection.key = channel.register(mSelector, SelectionKey.OP_READ,
+                            connection);
+                    mCounters.register(connection.session.getCounters());
+                }
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            mRead.clear();
+                            int n = connection.channel.read(mRead);
+                            if (n < 0) {
+                                close(connection);
+                            } else if (n > 0) {
+                                connection.session.onData(mReadBuffer, 0, n);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                close((Connection) key.attachment());
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Shutting down.
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        mCounters.unregister(connection.session.getCounters());
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+}
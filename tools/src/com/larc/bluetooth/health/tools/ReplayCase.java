@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One recorded exchange with a manager: the reads an agent's bytes arrive in
+ * and, per read, what the manager must answer. Corpus files hold cases as
+ * text, one line per item:
+ *
+ *   case NAME
+ *   sink TYPE          data type of the sink the channel belongs to, in hex;
+ *                      the manager decodes with that specialization's decoder
+ *   known-failure WHY  the manager is known not to do what the case expects
+ *   in HEX...          one read handed to the manager, in order; XX*N
+ *                      stands for N bytes of XX
+ *   out HEX...         everything the manager sends in response to that read
+ *   obs METRIC VALUE   a reading decoded from that read, metric in hex
+ *   error              the read hits a framing error
+ *   counters err=N conf=N dup=N
+ *   end
+ *
+ * A read with no out line must get no response. Blank lines and lines
+ * starting with # are ignored.
+ */
+final class ReplayCase {
+    static final class Step {
+        final byte[] in;
+        byte[] out = new byte[0];
+        final List<int[]> observations = new ArrayList<int[]>();
+        int errors;
+
+        Step(byte[] in) {
+            this.in = in;
+        }
+
+        // Adds an expected reading; the value is kept as float bits.
+        void expect(int metric, float value) {
+            observations.add(new int[] { metric, Float.floatToIntBits(value) });
+        }
+    }
+
+    final String name;
+    int dataType = 0x1007;
+    // Why the case is expected to fail, or null.
+    String knownFailure;
+    final List<Step> steps = new ArrayList<Step>();
+    long decodeErrors;
+    long confirmations;
+    long duplicates;
+
+    ReplayCase(String name) {
+        this.name = name;
+    }
+
+    Step in(byte[] bytes) {
+        Step step = new Step(bytes);
+        steps.add(step);
+        return step;
+    }
+
+    static List<ReplayCase> read(File file) throws IOException {
+        List<ReplayCase> cases = new ArrayList<ReplayCase>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            ReplayCase current = null;
+            Step step = null;
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] words = line.split("\\s+", 2);
+                String rest = words.length > 1 ? words[1] : "";
+                if ("case".equals(words[0])) {
+                    current = new ReplayCase(rest);
+                    step = null;
+                } else if (current == null) {
+                    throw new IOException(file + ":" + number + ": outside of a case");
+                } else if ("sink".equals(words[0])) {
+                    current.dataType = Integer.parseInt(rest, 16);
+                } else if ("known-failure".equals(words[0])) {
+                    current.knownFailure = rest;
+                } else if ("in".equals(words[0])) {
+                    step = current.in(hex(rest));
+                } else if ("end".equals(words[0])) {
+                    cases.add(current);
+                    current = null;
+                } else if ("counters".equals(words[0])) {
+                    for (String pair : rest.split("\\s+")) {
+                        String[] kv = pair.split("=");
+                        long value = Long.parseLong(kv[1]);
+                        if ("err".equals(kv[0])) {
+                            current.decodeErrors = value;
+                        } else if ("conf".equals(kv[0])) {
+                            current.confirmations = value;
+                        } else if ("dup".equals(kv[0])) {
+                            current.duplicates = value;
+                        }
+                    }
+                } else if (step == null) {
+                    throw new IOException(file + ":" + number + ": " + words[0] + " before in");
+                } else if ("out".equals(words[0])) {
+                    step.out = hex(rest);
+                } else if ("obs".equals(words[0])) {
+                    String[] obs = rest.split("\\s+");
+                    step.expect(Integer.parseInt(obs[0], 16), Float.parseFloat(obs[1]));
+                } else if ("error".equals(words[0])) {
+                    step.errors++;
+                } else {
+                    throw new IOException(file + ":" + number + ": unknown item " + words[0]);
+                }
+            }
+            if (current != null) {
+                throw new IOException(file + ": case " + current.name + " has no end");
+            }
+        } finally {
+            in.close();
+        }
+        return cases;
+    }
+
+    void write(PrintWriter out) {
+        out.println("case " + name);
+        out.println(String.format("sink %04X", dataType));
+        if (knownFailure != null) {
+            out.println("known-failure " + knownFailure);
+        }
+        for (Step step : steps) {
+            out.println("in " + hex(step.in, 0, step.in.length));
+            if (step.out.length > 0) {
+                out.println("out " + hex(step.out, 0, step.out.length));
+            }
+            for (int[] obs : step.observations) {
+                out.println(String.format("obs %04X %s", obs[0],
+                        Float.intBitsToFloat(obs[1])));
+            }
+            for (int i = 0; i < step.errors; i++) {
+                out.println("error");
+            }
+        }
+        out.println("counters err=" + decodeErrors + " conf=" + confirmations + " dup="
+                + duplicates);
+        out.println("end");
+        out.println();
+    }
+
+    // Parses hex bytes separated by spaces; "XX*N" stands for N bytes of XX.
+    static byte[] hex(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String b : text.trim().split("\\s+")) {
+            if (b.length() == 0) {
+                continue;
+            }
+            int star = b.indexOf('*');
+            int count = star < 0 ? 1 : Integer.parseInt(b.substring(star + 1));
+            int value = Integer.parseInt(star < 0 ? b : b.substring(0, star), 16);
+            for (int i = 0; i < count; i++) {
+                bytes.write(value);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // Formats bytes for hex(String), writing runs of eight or more as "XX*N".
+    static String hex(byte[] bytes, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 3);
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int run = 1;
+            while (i + run < end && bytes[i + run] == bytes[i]) {
+                run++;
+            }
+            if (i > offset) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", bytes[i] & 0xFF));
+            if (run >= 8) {
+                sb.append('*').append(run);
+                i += run;
+            } else {
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+}
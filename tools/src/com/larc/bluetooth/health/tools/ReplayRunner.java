@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.CaptureReader;
+import com.larc.bluetooth.health.CaptureWriter;
+import com.larc.bluetooth.health.ChannelCounters;
+import com.larc.bluetooth.health.ManagerSession;
+import com.larc.bluetooth.health.ReportDecoder;
+import com.larc.bluetooth.health.Specialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays corpus files (see {@link ReplayCase}) through {@link ManagerSession}
+ * and fails if a response, reading, framing error or counter differs from the
+ * corpus, or if the manager frames fewer APDUs per second or allocates more
+ * bytes per APDU than the budgets allow:
+ *
+ *   java -cp out com.larc.bluetooth.health.tools.ReplayRunner \
+ *       [--min-fps 1000000] [--max-alloc 32] [--perf-millis 2000] \
+ *       [--sink 1007] [--capture FILE]... [tools/corpus/*.txt]
+ *
+ * Each case is replayed with the decoder of its sink's specialization. Cases
+ * marked as known failures are reported but not counted, unless they pass.
+ * Without corpus files, every file in tools/corpus is replayed.
+ *
+ * Captures written by the service's CaptureWriter are replayed channel by
+ * channel with the decoder of --sink, and every response the manager sends
+ * must equal the one captured.
+ *
+ * Allocation is measured with the per-thread allocation counter of the
+ * HotSpot ThreadMXBean; sessions are created outside the measured span.
+ * Exits with 1 on any failure.
+ */
+public class ReplayRunner {
+    private static final String DEFAULT_CORPUS = "tools/corpus";
+
+    // Options.
+    // Budgets: about a fifth of the rate measured on a desktop JVM, and room for the pending
+    // buffer each new session grows for long reports; a steady session allocates nothing.
+    private double mMinFramesPerSecond = 1000000;
+    private double mMaxAllocPerFrame = 32;
+    private long mPerfMillis = 2000;
+    private int mCaptureDataType = 0x1007;
+    private final List<File> mCorpus = new ArrayList<File>();
+    private final List<File> mCaptures = new ArrayList<File>();
+
+    private int mFailures;
+
+    /**
+     * Records what a session does, for comparison with the corpus.
+     */
+    private static final class Recorder implements ManagerSession.Transport,
+            ManagerSession.Listener {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        final List<int[]> observations = new ArrayList<int[]>();
+        int errors;
+
+        void reset() {
+            sent.reset();
+            observations.clear();
+            errors = 0;
+        }
+
+        public void send(byte[] apdu, int offset, int length) {
+            sent.write(apdu, offset, length);
+        }
+
+        public void onAssociated(ManagerSession session) {
+        }
+
+        public void onObservation(ManagerSession session, int metric, long timestampMillis,
+                float value) {
+            observations.add(new int[] { metric, Float.floatToIntBits(value) });
+        }
+
+        public void onDuplicate(ManagerSession session, int invokeId) {
+        }
+
+        public void onReleased(ManagerSession session) {
+        }
+
+        public void onProtocolError(ManagerSession session, int type, int length) {
+            errors++;
+        }
+    }
+
+    /**
+     * Counts without allocating, for the performance runs.
+     */
+    private static final class Counter implements ManagerSession.Transport,
+            ManagerSession.Listener {
+        long bytesOut;
+        long observations;
+
+        public void send(byte[] apdu, int offset, int length) {
+            bytesOut += length;
+        }
+
+        public void onAssociated(ManagerSession session) {
+        }
+
+        public void onObservation(ManagerSession session, int metric, long timestampMillis,
+                float value) {
+            observations++;
+        }
+
+        public void onDuplicate(ManagerSession session, int invokeId) {
+        }
+
+        public void onReleased(ManagerSession session) {
+        }
+
+        public void onProtocolError(ManagerSession session, int type, int length) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ReplayRunner runner = new ReplayRunner();
+        runner.parse(args);
+        runner.run();
+        System.exit(runner.mFailures == 0 ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if ("--min-fps".equals(args[i])) {
+                mMinFramesPerSecond = Double.parseDouble(args[++i]);
+            } else if ("--max-alloc".equals(args[i])) {
+                mMaxAllocPerFrame = Double.parseDouble(args[++i]);
+            } else if ("--perf-millis".equals(args[i])) {
+                mPerfMillis = Long.parseLong(args[++i]);
+            } else if ("--sink".equals(args[i])) {
+                mCaptureDataType = Integer.parseInt(args[++i], 16);
+            } else if ("--capture".equals(args[i])) {
+                mCaptures.add(new File(args[++i]));
+            } else {
+                mCorpus.add(new File(args[i]));
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        if (mCorpus.isEmpty() && mCaptures.isEmpty()) {
+            File[] files = new File(DEFAULT_CORPUS).listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().endsWith(".txt")) {
+                        mCorpus.add(file);
+                    }
+                }
+            }
+            if (mCorpus.isEmpty()) {
+                fail("nothing to replay: no corpus files in " + DEFAULT_CORPUS);
+            }
+        }
+        for (File file : mCorpus) {
+            List<ReplayCase> cases = ReplayCase.read(file);
+            if (cases.isEmpty()) {
+                fail(file.getName() + ": no cases");
+            }
+            int failed = 0;
+            int known = 0;
+            for (ReplayCase c : cases) {
+                List<String> problems = check(c);
+                if (c.knownFailure != null) {
+                    if (problems.isEmpty()) {
+                        failed++;
+                        fail(c.name + ": passes; drop its known-failure line");
+                    } else {
+                        known++;
+                        System.out.println("KNOWN FAILURE " + c.name + ": " + c.knownFailure);
+                    }
+                } else if (!problems.isEmpty()) {
+                    failed++;
+                    for (String problem : problems) {
+                        fail(problem);
+                    }
+                }
+            }
+            System.out.println(String.format("%s: %d cases, %d failed, %d known failures",
+                    file.getName(), cases.size(), failed, known));
+            if (mPerfMillis > 0) {
+                measure(file.getName(), cases);
+            }
+        }
+        for (File file : mCaptures) {
+            replayCapture(file);
+        }
+        System.out.println(mFailures == 0 ? "PASS" : "FAIL: " + mFailures);
+    }
+
+    // Replays a case on a fresh session and returns how it differs from the corpus.
+    private static List<String> check(ReplayCase c) throws IOException {
+        Recorder recorder = new Recorder();
+        ManagerSession session = new ManagerSession("00:00:00:00:00:01", 1,
+                decoderFor(c.dataType), recorder, recorder);
+        List<String> problems = new ArrayList<String>();
+        for (int i = 0; i < c.steps.size(); i++) {
+            ReplayCase.Step step = c.steps.get(i);
+            recorder.reset();
+            session.onData(step.in, 0, step.in.length);
+            byte[] sent = recorder.sent.toByteArray();
+            String where = c.name + " read " + (i + 1);
+            if (!Arrays.equals(sent, step.out)) {
+                problems.add(where + ": sent\n    " + ReplayCase.hex(sent, 0, sent.length)
+                        + "\n  expected\n    " + ReplayCase.hex(step.out, 0, step.out.length));
+            }
+            if (!sameObservations(recorder.observations, step.observations)) {
+                problems.add(where + ": readings " + format(recorder.observations)
+                        + ", expected " + format(step.observations));
+            }
+            if (recorder.errors != step.errors) {
+                problems.add(where + ": " + recorder.errors + " framing errors, expected "
+                        + step.errors);
+            }
+        }
+        ChannelCounters counters = session.getCounters();
+        expectCounter(problems, c, "err", counters.get(ChannelCounters.DECODE_ERRORS),
+                c.decodeErrors);
+        expectCounter(problems, c, "conf", counters.get(ChannelCounters.CONFIRMATIONS),
+                c.confirmations);
+        expectCounter(problems, c, "dup", counters.get(ChannelCounters.DUPLICATES),
+                c.duplicates);
+        return problems;
+    }
+
+    // Replays the cases over and over on fresh sessions and checks the budgets.
+    private void measure(String name, List<ReplayCase> cases) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            fail(name + ": this VM cannot measure allocations");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        byte[][][] reads = new byte[cases.size()][][];
+        ReportDecoder[] decoders = new ReportDecoder[cases.size()];
+        for (int i = 0; i < reads.length; i++) {
+            decoders[i] = decoderFor(cases.get(i).dataType);
+            List<ReplayCase.Step> steps = cases.get(i).steps;
+            reads[i] = new byte[steps.size()][];
+            for (int j = 0; j < steps.size(); j++) {
+                reads[i][j] = steps.get(j).in;
+            }
+        }
+        Counter counter = new Counter();
+        ManagerSession[] sessions = new ManagerSession[reads.length];
+        // Half the time to warm up, the other half measured.
+        long warmUpEnd = System.nanoTime() + mPerfMillis * 500000L;
+        long frames = 0;
+        long nanos = 0;
+        long allocated = 0;
+        boolean warm = false;
+        while (true) {
+            if (!warm && System.nanoTime() >= warmUpEnd) {
+                warm = true;
+                frames = 0;
+                nanos = 0;
+                allocated = 0;
+            }
+            if (warm && nanos >= mPerfMillis * 500000L) {
+                break;
+            }
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = new ManagerSession("00:00:00:00:00:01", 1, decoders[i], counter,
+                        counter);
+            }
+            long bytesBefore = allocations.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions.length; i++) {
+                ManagerSession session = sessions[i];
+                for (byte[] read : reads[i]) {
+                    session.onData(read, 0, read.length);
+                }
+            }
+            nanos += System.nanoTime() - start;
+            allocated += allocations.getThreadAllocatedBytes(thread) - bytesBefore;
+            for (ManagerSession session : sessions) {
+                ChannelCounters counters = session.getCounters();
+                for (int type = ChannelCounters.APDU_E2; type <= ChannelCounters.APDU_E7;
+                        type++) {
+                    frames += counters.get(type);
+                }
+            }
+        }
+        double framesPerSecond = frames * 1e9 / nanos;
+        double allocPerFrame = allocated / (double) frames;
+        System.out.println(String.format("%s: %.0f frames/s (min %.0f), %.2f bytes allocated"
+                + "/frame (max %.2f)", name, framesPerSecond, mMinFramesPerSecond,
+                allocPerFrame, mMaxAllocPerFrame));
+        if (framesPerSecond < mMinFramesPerSecond) {
+            fail(name + ": below the throughput budget");
+        }
+        if (allocPerFrame > mMaxAllocPerFrame) {
+            fail(name + ": above the allocation budget");
+        }
+    }
+
+    // Feeds the inbound records of a capture to one session per channel and compares what the
+    // sessions send with the outbound records.
+    private void replayCapture(File file) throws IOException {
+        CaptureReader reader = new CaptureReader(file);
+        Map<Integer, ManagerSession> sessions = new HashMap<Integer, ManagerSession>();
+        Map<Integer, Recorder> recorders = new HashMap<Integer, Recorder>();
+        Map<Integer, Integer> matched = new HashMap<Integer, Integer>();
+        CaptureReader.Record record = new CaptureReader.Record();
+        long inbound = 0;
+        long outbound = 0;
+        long mismatches = 0;
+        try {
+            while (reader.next(record)) {
+                Recorder recorder = recorders.get(record.channelId);
+                if (recorder == null) {
+                    recorder = new Recorder();
+                    recorders.put(record.channelId, recorder);
+                    sessions.put(record.channelId, new ManagerSession("capture",
+                            record.channelId, decoderFor(mCaptureDataType), recorder, recorder));
+                    matched.put(record.channelId, 0);
+                }
+                if (record.direction == CaptureWriter.INBOUND) {
+                    inbound++;
+                    sessions.get(record.channelId).onData(record.data, 0, record.length);
+                    continue;
+                }
+                outbound++;
+                byte[] sent = recorder.sent.toByteArray();
+                int from = matched.get(record.channelId);
+                byte[] captured = Arrays.copyOf(record.data, record.length);
+                byte[] replayed = Arrays.copyOfRange(sent, Math.min(from, sent.length),
+                        Math.min(from + record.length, sent.length));
+                if (!Arrays.equals(captured, replayed)) {
+                    mismatches++;
+                    fail(String.format("%s: channel %d, response %d: sent\n    %s\n  captured\n"
+                            + "    %s", file.getName(), record.channelId, outbound,
+                            ReplayCase.hex(replayed, 0, replayed.length),
+                            ReplayCase.hex(captured, 0, captured.length)));
+                }
+                matched.put(record.channelId, from + record.length);
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.println(String.format("%s: %d channels, %d reads, %d responses, %d differ",
+                file.getName(), sessions.size(), inbound, outbound, mismatches));
+    }
+
+    private static void expectCounter(List<String> problems, ReplayCase c, String name,
+                                      long actual, long expected) {
+        if (actual != expected) {
+            problems.add(c.name + ": counter " + name + "=" + actual + ", expected " + expected);
+        }
+    }
+
+    // The decoder the service would give a channel of this sink: none for custom data types.
+    private static ReportDecoder decoderFor(int dataType) {
+        Specialization specialization = Specialization.forDataType(dataType);
+        return specialization != null ? specialization.decoder : null;
+    }
+
+    private static boolean sameObservations(List<int[]> a, List<int[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String format(List<int[]> observations) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int[] obs : observations) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(String.format("%04X=%s", obs[0], Float.intBitsToFloat(obs[1])));
+        }
+        return sb.append(']').toString();
+    }
+
+    private boolean fail(String message) {
+        System.out.println("FAIL " + message);
+        mFailures++;
+        return false;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One simulated agent: associates, sends its configuration if the manager
+ * asks for it, sends confirmed event reports of its device type at a fixed
+ * rate, releases after a number of reports and associates again. Driven by an
+ * {@link AgentLoop}; all state is touched by that loop's thread only.
+ */
+final class SimulatedAgent {
+    static final int CONNECTING = 0;
+    static final int ASSOCIATING = 1;
+    static final int OPERATING = 2;
+    static final int AWAITING_CONFIRM = 3;
+    static final int RELEASING = 4;
+    static final int IDLE = 5;
+    static final int CONFIGURING = 6;
+
+    private static final int DATA_APDU_CONFIRMATION = 0x0201;
+    private static final int MDC_NOTI_CONFIG = 0x0D1C;
+
+    final int mIndex;
+    // Where the manager's sink for this device type listens.
+    final InetSocketAddress mSink;
+    private final int mDeviceConfig;
+    private final int mConfigId;
+    private final byte[] mAssociationRequest;
+    private final byte[] mReleaseRequest = AgentApdus.releaseRequest();
+    private final byte[] mReport;
+    private final int mReportsPerAssociation;
+    private final long mIntervalNanos;
+    private final LoadStats mStats;
+
+    SocketChannel mChannel;
+    SelectionKey mKey;
+    int mState = CONNECTING;
+    // When the agent next acts; 0 if it is waiting on the manager.
+    long mDueNanos;
+
+    private final ByteBuffer mIn = ByteBuffer.allocate(512);
+    private final ByteBuffer mOut = ByteBuffer.allocate(512);
+    private int mInvokeId;
+    private int mReportsLeft;
+    private long mSentNanos;
+
+    // {@code deviceConfig} is the standard configuration of the device type; with
+    // {@code extended} the agent associates with an extended configuration id instead, which the
+    // manager has to ask it to describe.
+    SimulatedAgent(int index, InetSocketAddress sink, int deviceConfig, boolean extended,
+                   int reportsPerAssociation, long intervalNanos, LoadStats stats) {
+        mIndex = index;
+        mSink = sink;
+        mDeviceConfig = deviceConfig;
+        mConfigId = extended ? AgentApdus.CONFIG_EXTENDED + (index & 0xFFF) : deviceConfig;
+        mAssociationRequest = AgentApdus.associationRequest(index, mConfigId);
+        mReport = new byte[AgentApdus.eventReportSize(deviceConfig)];
+        mReportsPerAssociation = reportsPerAssociation;
+        mIntervalNanos = intervalNanos;
+        mStats = stats;
+        mOut.flip();
+    }
+
+    // The connection is up; start associating.
+    void onConnected() throws IOException {
+        associate();
+    }
+
+    // The agent's timer fired.
+    void onDue(long now) throws IOException {
+        mDueNanos = 0;
+        if (mState == OPERATING) {
+            mInvokeId = (mInvokeId + 1) & 0xFFFF;
+            int value = mIndex + mInvokeId;
+            if (mDeviceConfig == AgentApdus.CONFIG_THERMOMETER) {
+                AgentApdus.writeEventReport(mReport, 0, mDeviceConfig, mInvokeId, now / 1000000,
+                        360 + value % 20, 0);
+            } else if (mDeviceConfig == AgentApdus.CONFIG_WEIGHT_SCALE) {
+                AgentApdus.writeEventReport(mReport, 0, mDeviceConfig, mInvokeId, now / 1000000,
+                        600 + value % 300, 200 + value % 100);
+            } else {
+                AgentApdus.writeEventReport(mReport, 0, mDeviceConfig, mInvokeId, now / 1000000,
+                        110 + value % 40, 70 + value % 20);
+            }
+            mSentNanos = now;
+            mState = AWAITING_CONFIRM;
+            send(mReport);
+            mStats.reportsSent.incrementAndGet();
+        } else if (mState == IDLE) {
+            associate();
+        }
+    }
+
+    // Reads what the manager sent and reacts to every complete APDU.
+    void onReadable(long now) throws IOException {
+        int n = mChannel.read(mIn);
+        if (n < 0) {
+            throw new IOException("manager closed the connection");
+        }
+        byte[] buf = mIn.array();
+        int offset = 0;
+        int end = mIn.position();
+        while (end - offset >= 4) {
+            int size = AgentApdus.u16(buf, offset + 2) + 4;
+            if (size > buf.length) {
+                throw new IOException("APDU of " + size + " bytes");
+            }
+            if (end - offset < size) {
+                break;
+            }
+            onApdu(now, buf, offset, size);
+            offset += size;
+        }
+        System.arraycopy(buf, offset, buf, 0, end - offset);
+        mIn.position(end - offset);
+    }
+
+    // Writes what a previous send could not.
+    void onWritable() throws IOException {
+        mChannel.write(mOut);
+        if (!mOut.hasRemaining()) {
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onApdu(long now, byte[] apdu, int offset, int size) throws IOException {
+        int type = apdu[offset] & 0xFF;
+        if (type == 0xE3 && mState == ASSOCIATING && size >= 6) {
+            mStats.associations.incrementAndGet();
+            int result = AgentApdus.u16(apdu, offset + 4);
+            if (result == AgentApdus.ACCEPTED) {
+                operate(now);
+            } else if (result == AgentApdus.ACCEPTED_UNKNOWN_CONFIG) {
+                mInvokeId = (mInvokeId + 1) & 0xFFFF;
+                mState = CONFIGURING;
+                send(AgentApdus.configReport(mInvokeId, mConfigId, mDeviceConfig));
+            } else {
+                mStats.failures.incrementAndGet();
+                idle(now);
+            }
+        } else if (type == 0xE7 && mState == CONFIGURING && size >= 26
+                && AgentApdus.u16(apdu, offset + 8) == DATA_APDU_CONFIRMATION
+                && AgentApdus.u16(apdu, offset + 6) == mInvokeId
+                && AgentApdus.u16(apdu, offset + 18) == MDC_NOTI_CONFIG) {
+            if (AgentApdus.u16(apdu, offset + 24) == AgentApdus.ACCEPTED) {
+                mStats.configurations.incrementAndGet();
+                operate(now);
+            } else {
+                // The manager cannot read reports of this configuration.
+                mStats.failures.incrementAndGet();
+                mState = RELEASING;
+                send(mReleaseRequest);
+            }
+        } else if (type == 0xE7 && mState == AWAITING_CONFIRM && size >= 10
+                && AgentApdus.u16(apdu, offset + 8) == DATA_APDU_CONFIRMATION
+                && AgentApdus.u16(apdu, offset + 6) == mInvokeId) {
+            mStats.confirmationLatency.record(now - mSentNanos);
+            mStats.confirmed.incrementAndGet();
+            if (--mReportsLeft > 0) {
+                mState = OPERATING;
+                mDueNanos = Math.max(now + 1, mSentNanos + mIntervalNanos);
+            } else {
+                mState = RELEASING;
+                send(mReleaseRequest);
+            }
+        } else if (type == 0xE5 && mState == RELEASING) {
+            mStats.releases.incrementAndGet();
+            idle(now);
+        } else if (type == 0xE6) {
+            mStats.aborts.incrementAndGet();
+            idle(now);
+        }
+        // Anything else, such as the manager's GET of the MDS attributes, needs no answer here.
+    }
+
+    private void operate(long now) {
+        mReportsLeft = mReportsPerAssociation;
+        mState = OPERATING;
+        // Spread the first report over the interval so agents do not report in lockstep.
+        mDueNanos = now + 1 + (long) (Math.random() * mIntervalNanos);
+    }
+
+    private void associate() throws IOException {
+        mState = ASSOCIATING;
+        send(mAssociationRequest);
+    }
+
+    private void idle(long now) {
+        mState = IDLE;
+        mDueNanos = now + mIntervalNanos;
+    }
+
+    private void send(byte[] apdu) throws IOException {
+        if (mOut.hasRemaining()) {
+            // Still flushing; queue behind what is there.
+            mOut.compact();
+            mOut.put(apdu);
+            mOut.flip();
+            return;
+        }
+        mOut.clear();
+        mOut.put(apdu).flip();
+        mChannel.write(mOut);
+        if (mOut.hasRemaining()) {
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
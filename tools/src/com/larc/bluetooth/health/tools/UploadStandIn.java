@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.ObservationExporter;
+import com.larc.bluetooth.health.ObservationLog;
+import com.larc.bluetooth.health.Uploader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the upload backend. Accepts batches posted by
+ * {@link Uploader}, keeps the first copy of every batch id and answers 409
+ * to copies, and can be told to be slow or to fail:
+ *
+ *   java -cp out com.larc.bluetooth.health.tools.UploadStandIn \
+ *       [--port 8080] [--delay-ms 0] [--fail-rate 0] [--lose-ack-rate 0]
+ *
+ * --fail-rate rejects a batch with 503 before storing it; --lose-ack-rate
+ * stores it and still answers 503, as if the response was lost.
+ *
+ * With --check [--readings 100000] it instead runs an Uploader against
+ * itself on a temporary log, stops and restarts it halfway, and verifies
+ * that every reading arrived exactly once.
+ */
+public class UploadStandIn implements HttpHandler {
+    // Options.
+    private int mPort = 8080;
+    private long mDelayMillis;
+    private double mFailRate;
+    private double mLoseAckRate;
+    private boolean mCheck;
+    private int mReadings = 100000;
+
+    private final Random mRandom = new Random();
+    private final ConcurrentHashMap<String, Integer> mBatches =
+            new ConcurrentHashMap<String, Integer>();
+    // Readings received, by timestamp; the check gives every reading its own.
+    private final ConcurrentHashMap<Long, Integer> mReceived =
+            new ConcurrentHashMap<Long, Integer>();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mRecords = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        UploadStandIn standIn = new UploadStandIn();
+        standIn.parse(args);
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", standIn.mCheck ? 0 : standIn.mPort), 64);
+        server.createContext("/", standIn);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.start();
+        if (standIn.mCheck) {
+            boolean ok = false;
+            try {
+                ok = standIn.check(server.getAddress().getPort());
+            } finally {
+                // Also when the check throws, so the server's threads do not keep the VM alive.
+                server.stop(0);
+                executor.shutdown();
+            }
+            System.exit(ok ? 0 : 1);
+        }
+        System.out.println("Listening on " + server.getAddress());
+        while (true) {
+            Thread.sleep(10000);
+            standIn.printStats();
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if ("--check".equals(args[i])) {
+                mCheck = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            if ("--port".equals(args[i - 1])) {
+                mPort = Integer.parseInt(value);
+            } else if ("--delay-ms".equals(args[i - 1])) {
+                mDelayMillis = Long.parseLong(value);
+            } else if ("--fail-rate".equals(args[i - 1])) {
+                mFailRate = Double.parseDouble(value);
+            } else if ("--lose-ack-rate".equals(args[i - 1])) {
+                mLoseAckRate = Double.parseDouble(value);
+            } else if ("--readings".equals(args[i - 1])) {
+                mReadings = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            mRequests.incrementAndGet();
+            String id = exchange.getRequestHeaders().getFirst("X-Batch-Id");
+            byte[] body = readAll(exchange.getRequestBody());
+            if (mDelayMillis > 0) {
+                Thread.sleep(mDelayMillis);
+            }
+            if (id == null || !"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (chance(mFailRate)) {
+                mFailures.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            int status = 200;
+            synchronized (this) {
+                if (mBatches.containsKey(id)) {
+                    mDuplicates.incrementAndGet();
+                    status = 409;
+                } else {
+                    int records = store(body);
+                    mBatches.put(id, records);
+                    mBytes.addAndGet(body.length);
+                    mRecords.addAndGet(records);
+                }
+            }
+            if (status == 200 && chance(mLoseAckRate)) {
+                mFailures.incrementAndGet();
+                status = 503;
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Parses a gzipped binary export and counts its readings by timestamp.  Nothing is counted
+    // unless the whole batch parses.
+    private int store(byte[] body) throws IOException {
+        ArrayList<Long> timestamps = new ArrayList<Long>();
+        DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(body)));
+        if (in.readInt() != ObservationExporter.BINARY_MAGIC
+                || in.readShort() != ObservationExporter.BINARY_VERSION) {
+            throw new IOException("Not a binary export");
+        }
+        byte[] payload = new byte[ObservationExporter.BINARY_PAYLOAD_SIZE];
+        while (true) {
+            int length;
+            try {
+                length = in.readUnsignedShort();
+            } catch (EOFException e) {
+                break;
+            }
+            if (length != payload.length) {
+                throw new IOException("Record of " + length + " bytes");
+            }
+            in.readFully(payload);
+            long timestamp = 0;
+            for (int i = 0; i < 8; i++) {
+                timestamp = (timestamp << 8) | (payload[i] & 0xFF);
+            }
+            timestamps.add(timestamp);
+        }
+        for (Long timestamp : timestamps) {
+            Integer seen = mReceived.get(timestamp);
+            mReceived.put(timestamp, seen == null ? 1 : seen + 1);
+        }
+        return timestamps.size();
+    }
+
+    // Uploads a log of distinct readings to this server, restarting the uploader halfway, and
+    // checks that each reading arrived once.
+    private boolean check(int port) throws Exception {
+        File dir = File.createTempFile("upload", "");
+        dir.delete();
+        dir.mkdirs();
+        File cursor = new File(dir, "upload.cursor");
+        ObservationLog log = new ObservationLog(new File(dir, "observations.log"));
+        Uploader.Transport transport = new Uploader.HttpTransport(
+                new URL("http://127.0.0.1:" + port + "/batches"));
+        long start = System.currentTimeMillis();
+
+        append(log, 0, mReadings / 2);
+        Uploader uploader = new Uploader(log, cursor, transport, "check",
+                Uploader.DEFAULT_MAX_IN_FLIGHT);
+        uploader.start();
+        while (uploader.getCursor() < mReadings / 4) {
+            Thread.sleep(5);
+        }
+        uploader.stop();
+        System.out.println("Stopped at " + uploader.getCursor() + ", batch size "
+                + uploader.getBatchSize());
+
+        append(log, mReadings / 2, mReadings);
+        uploader = new Uploader(log, cursor, transport, "check", Uploader.DEFAULT_MAX_IN_FLIGHT);
+        uploader.start();
+        long deadline = System.currentTimeMillis() + 10 * 60 * 1000;
+        while (uploader.getCursor() < log.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        uploader.stop();
+        long elapsed = System.currentTimeMillis() - start;
+
+        int missing = 0;
+        int repeated = 0;
+        for (long t = 0; t < mReadings; t++) {
+            Integer seen = mReceived.get(t);
+            if (seen == null) {
+                missing++;
+            } else if (seen > 1) {
+                repeated++;
+            }
+        }
+        printStats();
+        System.out.println(String.format("%d readings in %d ms (%.0f/s), final batch size %d,"
+                + " %.1f bytes/reading", mReadings, elapsed, mReadings * 1000.0 / elapsed,
+                uploader.getBatchSize(), mBytes.get() / (double) mReadings));
+        System.out.println(String.format("missing %d, received more than once %d", missing,
+                repeated));
+        log.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        return missing == 0 && repeated == 0 && mReceived.size() == mReadings;
+    }
+
+    private static void append(ObservationLog log, int from, int to) throws IOException {
+        Random random = new Random(from);
+        long[] devices = { 0x001122334455L, 0x00AABBCCDDEEL, 0x0000DEADBEEFL };
+        for (int i = from; i < to; i++) {
+            log.append(i, devices[i % devices.length], 0x4A05 + (i % 3),
+                    80 + random.nextInt(80));
+        }
+    }
+
+    private void printStats() {
+        System.out.println(String.format("requests %d, batches %d, readings %d, duplicates %d,"
+                + " failures %d, %d bytes", mRequests.get(), mBatches.size(), mRecords.get(),
+                mDuplicates.get(), mFailures.get(), mBytes.get()));
+    }
+
+    private boolean chance(double rate) {
+        synchronized (mRandom) {
+            return rate > 0 && mRandom.nextDouble() < rate;
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
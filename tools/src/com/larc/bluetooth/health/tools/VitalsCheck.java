@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larc.bluetooth.health.tools;
+
+import com.larc.bluetooth.health.FloatSeriesRing;
+import com.larc.bluetooth.health.VitalsStore;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks {@link FloatSeriesRing} and {@link VitalsStore}: wraparound, the
+ * window query, and two channels of one device appending at once while a
+ * reader copies windows:
+ *
+ *   java -cp out com.larc.bluetooth.health.tools.VitalsCheck [--appends 1000000]
+ *
+ * Exits with 1 on any failure.
+ */
+public class VitalsCheck {
+    private int mAppends = 1000000;
+    private int mFailures;
+
+    public static void main(String[] args) throws Exception {
+        VitalsCheck check = new VitalsCheck();
+        for (int i = 0; i < args.length; i++) {
+            if ("--appends".equals(args[i])) {
+                check.mAppends = Integer.parseInt(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        check.wraparound();
+        check.window();
+        check.concurrentWriters();
+        check.dump();
+        System.out.println(check.mFailures == 0 ? "PASS" : "FAIL: " + check.mFailures);
+        System.exit(check.mFailures == 0 ? 0 : 1);
+    }
+
+    // Twenty readings through a ring of eight keep the last seven; one slot is never read, as
+    // the writer may be filling it.
+    private void wraparound() {
+        FloatSeriesRing ring = new FloatSeriesRing(8);
+        for (int i = 0; i < 20; i++) {
+            ring.append(i, i);
+        }
+        FloatSeriesRing.Snapshot snapshot = ring.snapshot(new FloatSeriesRing.Snapshot());
+        expect("wraparound: snapshot", snapshot.start + "-" + snapshot.end, "13-20");
+        for (long seq = snapshot.start; seq < snapshot.end; seq++) {
+            int i = snapshot.index(seq);
+            expect("wraparound: reading " + seq, snapshot.timestamps[i] + "/" + snapshot.values[i],
+                    seq + "/" + (float) seq);
+        }
+        expect("wraparound: last", ring.last(-1), 19f);
+        long[] timestamps = new long[16];
+        float[] values = new float[16];
+        int n = ring.copySince(0, timestamps, values);
+        expect("wraparound: copied", n, 7);
+        expect("wraparound: oldest copied", timestamps[0], 13L);
+        expect("wraparound: newest copied", values[n - 1], 19f);
+    }
+
+    // The window starts at the first reading at or after its start, and keeps the newest
+    // readings when the arrays are short.
+    private void window() {
+        FloatSeriesRing ring = new FloatSeriesRing(64);
+        expect("window: empty", ring.copySince(0, new long[4], new float[4]), 0);
+        for (int i = 0; i < 40; i++) {
+            ring.append(1000 + 10 * i, i);
+        }
+        long[] timestamps = new long[64];
+        float[] values = new float[64];
+        int n = ring.copySince(1355, timestamps, values);
+        expect("window: size", n, 4);
+        expect("window: first", timestamps[0], 1360L);
+        expect("window: exact start", ring.copySince(1360, timestamps, values), 4);
+        expect("window: after last", ring.copySince(2000, timestamps, values), 0);
+        n = ring.copySince(0, new long[3], values);
+        expect("window: short arrays", n + "/" + values[0] + "/" + values[2], "3/37.0/39.0");
+        FloatSeriesRing.Snapshot since = ring.snapshotSince(1355,
+                new FloatSeriesRing.Snapshot());
+        expect("window: snapshot", since.size(), 4);
+    }
+
+    // Two writers, as when a device reconnects before its old channel is gone, and a reader.
+    // Every reading's value is derived from its timestamp, so a torn slot shows.
+    private void concurrentWriters() throws InterruptedException {
+        final FloatSeriesRing ring = new FloatSeriesRing(1024);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger torn = new AtomicInteger();
+        Thread[] writers = new Thread[2];
+        for (int w = 0; w < writers.length; w++) {
+            final long base = (w + 1) * 10000000L;
+            writers[w] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < mAppends; i++) {
+                        long timestamp = base + i;
+                        ring.append(timestamp, valueOf(timestamp));
+                    }
+                }
+            };
+        }
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                long[] timestamps = new long[1024];
+                float[] values = new float[1024];
+                while (!done.get()) {
+                    int n = ring.copySince(0, timestamps, values);
+                    for (int i = 0; i < n; i++) {
+                        if (values[i] != valueOf(timestamps[i])) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        expect("concurrent: appends", ring.sequence(), 2L * mAppends);
+        expect("concurrent: torn readings copied", torn.get(), 0);
+        FloatSeriesRing.Snapshot snapshot = ring.snapshot(new FloatSeriesRing.Snapshot());
+        int bad = 0;
+        for (long seq = snapshot.start; seq < snapshot.end; seq++) {
+            int i = snapshot.index(seq);
+            if (snapshot.values[i] != valueOf(snapshot.timestamps[i])) {
+                bad++;
+            }
+        }
+        expect("concurrent: torn slots", bad, 0);
+    }
+
+    // The dump summarizes only the readings inside its window.
+    private void dump() {
+        VitalsStore store = new VitalsStore(16);
+        long now = 100 * 60 * 1000;
+        FloatSeriesRing ring = store.floatSeries("00:11:22:33:44:55", 0x4A05);
+        ring.append(now - 20 * 60 * 1000, 180);
+        ring.append(now - 60 * 1000, 120);
+        ring.append(now - 30 * 1000, 130);
+        StringWriter out = new StringWriter();
+        store.dump(new PrintWriter(out, true), now, 10 * 60 * 1000);
+        expect("dump", out.toString().contains(
+                "00:11:22:33:44:55 4A05 n=2 min=120.0 max=130.0 mean=125.00 last=130.0"), true);
+    }
+
+    private static float valueOf(long timestamp) {
+        return timestamp % 100000;
+    }
+
+    private void expect(String what, Object actual, Object expected) {
+        if (!expected.equals(actual)) {
+            System.out.println("FAIL " + what + ": " + actual + ", expected " + expected);
+            mFailures++;
+        }
+    }
+}